@@ -2,6 +2,7 @@ package edu.rutgers.retro;
 
 import java.io.*;
 import java.util.*;
+import java.nio.*;
 
 /** Information about one action, mapped to data file */
 class ActionDetails implements Storable {
@@ -29,6 +30,17 @@ class ActionDetails implements Storable {
 	aid = f.readInt();
 	utc = f.readInt();
     }
+    /** Writes the data in the same format as write(RandomAccessFile) does */
+    public void write(ByteBuffer b) {
+	b.putInt(uid);
+	b.putInt(aid);
+	b.putInt(utc);
+    }
+    public void readFrom(ByteBuffer b) {
+	uid = b.getInt();
+	aid = b.getInt();
+	utc = b.getInt();
+    }
 
     public String toString() {
 	return "(user="+uid+", aid="+aid+",utc="+utc+")";
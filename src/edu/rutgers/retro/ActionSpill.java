@@ -0,0 +1,102 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+
+/** A temporary binary file into which UserStats saves all usable
+    actions as it reads the log files for the first time. Each action
+    is a 12-byte record (user ID, article ID, utc). This allows
+    UserActionSaver to build the action index from this file, instead
+    of reading and parsing all log files a second time.
+
+    <p>The user IDs are those from the user name table passed to the
+    constructor. Since the final (sorted) article ID list is not known
+    until all log files have been read, article IDs in the file are
+    temporary ones, assigned in the order in which articles have been
+    first seen; the caller maps them to the final IDs with aidMap().
+
+    <p>The end of each log file is marked with a special record, so
+    that the reader can do any per-file processing it wants.
+*/
+class ActionSpill {
+    /** The value of the user ID field in end-of-file marker records */
+    static final int EOF_MARK = -1;
+
+    final File file;
+    /** Assigns user IDs */
+    final NameTable users;
+    /** Assigns temporary article IDs */
+    final NameTable aids = new NameTable();
+    private DataOutputStream out;
+    /** Number of action records written */
+    long cnt = 0;
+
+    /** Creates the file.
+	@param _users The user IDs will be obtained from this table. New
+	names will be added to it as they are found.
+     */
+    ActionSpill(File _file, NameTable _users) throws IOException {
+	file = _file;
+	users = _users;
+	out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1<<20));
+    }
+
+    /** Saves one action */
+    void write(String uname, String aid, int utc) throws IOException {
+	users.addIfNew(uname);
+	aids.addIfNew(aid);
+	out.writeInt(users.get(uname));
+	out.writeInt(aids.get(aid));
+	out.writeInt(utc);
+	cnt++;
+    }
+
+    /** Marks the end of one log file */
+    void endOfFile() throws IOException {
+	out.writeInt(EOF_MARK);
+	out.writeInt(0);
+	out.writeInt(0);
+    }
+
+    void close() throws IOException {
+	out.close();
+    }
+
+    /** Computes the mapping from the temporary article IDs used in
+	this file to the final ones.
+	@return An array whose element [i] is the final ID for the temporary ID i
+    */
+    int[] aidMap(NameTable aidNameTable) {
+	int[] map = new int[aids.size()];
+	for(int i=0; i<map.length; i++) {
+	    map[i] = aidNameTable.get(aids.nameAt(i));
+	}
+	return map;
+    }
+
+    /** Reads the file back, sequentially */
+    static class Reader {
+	private final DataInputStream in;
+	/** The content of the last record read */
+	int uid, aid, utc;
+	Reader(File f) throws IOException {
+	    in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1<<20));
+	}
+	/** Reads the next record.
+	    @return false at the end of the file */
+	boolean next() throws IOException {
+	    try {
+		uid = in.readInt();
+	    } catch(EOFException ex) {
+		return false;
+	    }
+	    aid = in.readInt();
+	    utc = in.readInt();
+	    return true;
+	}
+	void close() throws IOException {
+	    in.close();
+	}
+    }
+
+}
@@ -0,0 +1,30 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+
+/** Read access to the list of all actions (actions.dat), by
+    position. This is implemented by RafActionStore, which reads the
+    file via RandomAccessFile, and by MappedActionStore, which maps
+    it into memory.
+
+    <p>The ActionDetails object passed to read() serves as a reusable
+    cursor: a loop over many actions should create it once, and
+    pass it to every read() call.
+*/
+interface ActionStore {
+    /** The number of actions in the store */
+    long lengthObject() throws IOException;
+    /** Reads the action at the specified position into the blank object
+	@return blank */
+    ActionDetails read(ActionDetails blank, long pos) throws IOException;
+    /** Reads the actions at positions pos[off] through
+	pos[off+n-1] into blanks[0] through blanks[n-1]. This is
+	faster if the positions are in increasing order (as the
+	pointers in a user's section of userHistory.dat are), since
+	nearby records can then be read together */
+    void readMany(int[] pos, int off, int n, ActionDetails[] blanks) throws IOException;
+    int uid(long pos) throws IOException;
+    int aid(long pos) throws IOException;
+    int utc(long pos) throws IOException;
+    void close() throws IOException;
+}
@@ -0,0 +1,167 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/** An inverted index of the actions: for each article, the list of
+    the actions involving it. It consists of two files, built next
+    to userHistory.dat:
+    <ul>
+    <li>aidPostings.dat - for each article (in aid order), the list of
+    its postings, in chronological order. Each posting is a 12-byte
+    record (uid, utc, action position in actions.dat).
+    <li>aidIndex.dat - for each article, an int offset (in postings) of
+    the beginning of its section of aidPostings.dat, similar to
+    userHistoryIndex.dat.
+    </ul>
+    Since UserActionSaver never records more than one action by the
+    same user on the same article, each article's postings have
+    distinct uid values.
+
+    <p>To build the index for an existing index directory:
+    <pre>
+    java edu.rutgers.retro.AidIndex indexDir
+    </pre>
+*/
+class AidIndex {
+    /** Size of one posting, in bytes */
+    static final int SIZEOF = 3*(Integer.SIZE/8);
+
+    static File indexFile(File indexDir) {
+	return new File(indexDir, "aidIndex.dat");
+    }
+    static File postingsFile(File indexDir) {
+	return new File(indexDir, "aidPostings.dat");
+    }
+
+    /** Are the index files there, and newer than actions.dat? */
+    static boolean exists(File indexDir) {
+	File f = postingsFile(indexDir), a = new File(indexDir, "actions.dat");
+	return indexFile(indexDir).exists() && f.exists() && f.lastModified() >= a.lastModified();
+    }
+
+    /** The beginning of each article's postings, plus the total
+	number of postings at the end */
+    private final int[] offsets;
+    private final ObjectRandomAccessFile raf;
+
+    AidIndex(File indexDir) throws IOException {
+	ObjectRandomAccessFile ir = new ObjectRandomAccessFile(indexFile(indexDir), "r", Integer.SIZE/8);
+	int aidCnt = (int)ir.lengthObject();
+	byte[] buf = new byte[aidCnt * ir.sizeof];
+	ir.readFully(buf);
+	ir.close();
+	offsets = new int[aidCnt+1];
+	ByteBuffer.wrap(buf).asIntBuffer().get(offsets, 0, aidCnt);
+	raf = new ObjectRandomAccessFile(postingsFile(indexDir), "r", SIZEOF);
+	offsets[aidCnt] = (int)raf.lengthObject();
+    }
+
+    /** The number of postings (i.e. users) for an article */
+    int count(int aid) {
+	return offsets[aid+1] - offsets[aid];
+    }
+
+    /** Reads all postings for an article, with one read.
+	@return An array of 3*count(aid) values: (uid, utc, pos) for each posting
+     */
+    int[] postings(int aid) throws IOException {
+	int n = count(aid);
+	byte[] buf = new byte[n * SIZEOF];
+	raf.seekObject(offsets[aid]);
+	raf.readFully(buf);
+	int[] p = new int[3*n];
+	ByteBuffer.wrap(buf).asIntBuffer().get(p);
+	return p;
+    }
+
+    /** The users who have had actions involving any of the specified
+	articles.
+	@return A sorted array of distinct uid values
+     */
+    int[] usersOf(Collection<Integer> aids) throws IOException {
+	IntSet seen = new IntSet();
+	int[] v = new int[16];
+	int cnt = 0;
+	for(int aid: aids) {
+	    int[] p = postings(aid);
+	    for(int i=0; i<p.length; i+=3) {
+		if (!seen.add(p[i])) continue;
+		if (cnt==v.length) v = Arrays.copyOf(v, 2*cnt);
+		v[cnt++] = p[i];
+	    }
+	}
+	v = Arrays.copyOf(v, cnt);
+	Arrays.sort(v);
+	return v;
+    }
+
+    void close() throws IOException {
+	raf.close();
+    }
+
+    /** Builds the index. Pass 1 counts the postings of each
+	article; pass 2 scans the action list (memory-mapped; see
+	SegmentedActionStore.open()) once more, and scatters each posting straight to its final place
+	in aidPostings.dat, which is mapped read-write in segments of
+	MappedActionStore.SEGMENT_RECORDS postings (a posting has the
+	same size as an action record). Since the actions are scanned
+	in order, each article's postings come out chronological.
+    */
+    static void build(File indexDir, int aidCnt) throws IOException {
+	ActionStore actions = SegmentedActionStore.open(indexDir);
+	final long n = actions.lengthObject();
+	if (n > Integer.MAX_VALUE) throw new IOException("Too many actions (" + n + ") for int offsets in " + indexFile(indexDir));
+	// pass 1: count postings per article
+	int[] fill = new int[aidCnt];
+	for(long pos=0; pos<n; pos++) fill[actions.aid(pos)]++;
+
+	// turn the counts into the offsets of the articles' sections
+	DataOutputStream iout = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile(indexDir)), 1<<16));
+	int offset = 0;
+	for(int a=0; a<aidCnt; a++) {
+	    int c = fill[a];
+	    iout.writeInt(offset);
+	    fill[a] = offset;
+	    offset += c;
+	}
+	iout.close();
+
+	// pass 2: scatter the postings
+	final int SEG = MappedActionStore.SEGMENT_RECORDS;
+	final long len = n * SIZEOF;
+	RandomAccessFile raf = new RandomAccessFile(postingsFile(indexDir), "rw");
+	raf.setLength(len);
+	FileChannel fc = raf.getChannel();
+	int segCnt = (int)((n + SEG - 1) / SEG);
+	MappedByteBuffer[] segments = new MappedByteBuffer[segCnt];
+	for(int i=0; i<segCnt; i++) {
+	    long start = i * MappedActionStore.SEGMENT_BYTES;
+	    segments[i] = fc.map(FileChannel.MapMode.READ_WRITE, start, Math.min(MappedActionStore.SEGMENT_BYTES, len-start));
+	}
+	for(long pos=0; pos<n; pos++) {
+	    int k = fill[actions.aid(pos)]++;
+	    ByteBuffer b = segments[k / SEG];
+	    int j = (k % SEG) * SIZEOF;
+	    b.putInt(j, actions.uid(pos));
+	    b.putInt(j+4, actions.utc(pos));
+	    b.putInt(j+8, (int)pos);
+	}
+	for(MappedByteBuffer b: segments) b.force();
+	raf.close(); // the mappings are released when garbage-collected
+	actions.close();
+	System.out.println("Saved " + n + " postings for " + aidCnt + " articles to " + postingsFile(indexDir));
+    }
+
+    public static void main(String [] argv) throws IOException {
+	if (argv.length != 1) {
+	    System.out.println("Usage: AidIndex indexDir");
+	    return;
+	}
+	File indexDir = new File(argv[0]);
+	NameTable aidNameTable = MappedNameTable.open(new File(indexDir, "aid.dat"));
+	build(indexDir, aidNameTable.size());
+    }
+}
@@ -14,8 +14,65 @@ import org.json.*;
 
 abstract class ArxivUserInferrer {
 
-    int ignoredCnt=0, fromIPCnt=0, fromAnonCookieCnt=0, fromUserCookieCnt=0;
-    int ambigCnt=0;
+    /** The kinds of inferUser() results, i.e. which counter each call
+	increments */
+    static final int IGNORED=0, FROM_IP=1, FROM_ANON_COOKIE=2, FROM_USER_COOKIE=3;
+
+    /** The counters reported by report() */
+    static class Counts {
+	int ignoredCnt=0, fromIPCnt=0, fromAnonCookieCnt=0, fromUserCookieCnt=0;
+	int ambigCnt=0;
+	/** The kind of result last counted by count(). Callers that
+	    cache inferUser() results (such as RawActionDecoder) keep it
+	    along with the result, so that they can count each action
+	    just like inferUser() would */
+	int last = IGNORED;
+	/** Counts one action of the specified kind (IGNORED etc.) */
+	void count(int kind) {
+	    switch(kind) {
+	    case IGNORED: ignoredCnt++; break;
+	    case FROM_IP: fromIPCnt++; break;
+	    case FROM_ANON_COOKIE: fromAnonCookieCnt++; break;
+	    case FROM_USER_COOKIE: fromUserCookieCnt++; break;
+	    default: throw new IllegalArgumentException("Unknown kind: " + kind);
+	    }
+	    last = kind;
+	}
+	void add(Counts c) {
+	    ignoredCnt += c.ignoredCnt;
+	    fromIPCnt += c.fromIPCnt;
+	    fromAnonCookieCnt += c.fromAnonCookieCnt;
+	    fromUserCookieCnt += c.fromUserCookieCnt;
+	    ambigCnt += c.ambigCnt;
+	}
+    }
+
+    /** The totals */
+    private final Counts totals = new Counts();
+    /** Where each thread's inferUser() calls are counted, if not in
+	the totals (see countInto()) */
+    private final ThreadLocal<Counts> sinks = new ThreadLocal<Counts>();
+
+    /** The counters to be incremented by the current inferUser() call */
+    Counts counts() {
+	Counts c = sinks.get();
+	return (c==null)? totals : c;
+    }
+
+    /** Makes the inferUser() calls made by the current thread be
+	counted in c rather than in the totals (or, if c is null, in the
+	totals again). This is used when several threads parse log
+	files (see UserStats.addFromJsonFilesParallel()): each file's
+	counts are kept separately, and added to the totals, with
+	addCounts(), by the thread that processes the files' results */
+    void countInto(Counts c) {
+	if (c==null) sinks.remove();
+	else sinks.set(c);
+    }
+
+    void addCounts(Counts c) {
+	totals.add(c);
+    }
 
     /** Looks at the ip and cookie information, applies some (possibly
 	trivial) algorithm, and decides who was the user carrying out the 
@@ -26,14 +83,24 @@ abstract class ArxivUserInferrer {
      */
     abstract String inferUser(String ip_hash, String cookie_hash);
 
+    /** Does inferUser() make use of its ip_hash argument? If it
+	does not, the callers that cache its results (such as
+	RawActionDecoder) can key them by the cookie alone.
+     */
+    boolean usesIp() { return true; }
+
+    /** Does inferUser() make use of its cookie_hash argument? */
+    boolean usesCookie() { return true; }
+
     String report() {
+	Counts c = totals;
 	String s = "" +  
-	    ignoredCnt + " actions ignored due to lack of user information; " + 
-	    fromIPCnt + " interpreted based on IP address; " +
-	    fromAnonCookieCnt + " based on anon cookies; " +  
-	    fromUserCookieCnt + " based on user cookies";
-	if (ambigCnt>0) {
-	    s += "\nAmbiguous user/cookie hash values detected and corrected: " + ambigCnt;
+	    c.ignoredCnt + " actions ignored due to lack of user information; " + 
+	    c.fromIPCnt + " interpreted based on IP address; " +
+	    c.fromAnonCookieCnt + " based on anon cookies; " +  
+	    c.fromUserCookieCnt + " based on user cookies";
+	if (c.ambigCnt>0) {
+	    s += "\nAmbiguous user/cookie hash values detected and corrected: " + c.ambigCnt;
 	}
 	return s;
     }
@@ -10,42 +10,84 @@ import org.json.*;
 
 /** Information about registered Arxiv users, from tc.json. It links
     a registered user to the list of cookies known to be associated
-    with him, and allows the reverse lookup (cookie to user) as well.
+    with him, and allows the reverse lookup (cookie to user).
+
+    <p>The cookie-to-user map is kept in a compact CookieTable. Since
+    parsing tc.json.gz takes a while, the table can also be saved to a
+    binary snapshot file (tc.bin, next to tc.json.gz), which is then
+    memory-mapped by load() in later runs. To create the snapshot:
+    <pre>
+    java edu.rutgers.retro.ArxivUserTable /data/json/usage/tc.json.gz
+    </pre>
 */
 class ArxivUserTable  {
-    HashMap<String,Vector<String>> user2cookies = new HashMap<String,Vector<String>>();
-    HashMap<String,String> cookie2user =  new HashMap<String,String>();
-    
+    /** Maps cookies to the numbers of registered users */
+    final CookieTable cookies;
+
+    /** Reads the table from tc.json (possibly gzipped) */
     ArxivUserTable(String fname) throws IOException, JSONException {
 	JSONObject jsoOuter = Json.readJsonFile(fname);
 	String [] names = JSONObject.getNames(jsoOuter);
+	if (names==null) names = new String[0];
 	System.out.println("User activity file has data for " + names.length + " users");
-	int cnt=0, keyCnt=0;
+	cookies = new CookieTable();
+	int cnt=0;
 	for(String u: names) {
 	    JSONArray a = jsoOuter.getJSONArray(u);
 	    final int n=a.length();
-	    Vector<String> v= new Vector<String>(n); 
+	    int k = cookies.addUser(u);
 	    for(int i=0; i<n; i++) {
-		String cookie = a.getString(i);
-		v.add(cookie);
-		cookie2user.put(cookie, u);
+		cookies.put(a.getString(i), k);
 	    }
-	    user2cookies.put(u,v);
-	    keyCnt++;
 	    cnt += n;
-	    //if (keyCnt%1000==0) System.out.println("key cnt=" + keyCnt +", val cnt=" + cnt +", u=" + u);
 	}
 	System.out.println("User activity file "+fname+" contains "+cnt+" cookies for " + names.length + " users");
     }
 
-   public static void main(String [] argv) throws IOException, JSONException {
+    private ArxivUserTable(CookieTable _cookies) {
+	cookies = _cookies;
+    }
+
+    /** @return The user associated with the cookie, or null if there is none */
+    String cookie2user(String cookie) {
+	int k = cookies.get(cookie);
+	return k<0? null: cookies.userName(k);
+    }
+
+    /** The name of the snapshot file for a given tc.json file: e.g.
+	/data/json/usage/tc.bin for /data/json/usage/tc.json.gz */
+    static File snapshotFile(String fname) {
+	String s = fname.replaceAll("\\.gz$", "").replaceAll("\\.json$", "");
+	return new File(s + ".bin");
+    }
+
+    /** Loads the table. If a snapshot file, no older than the JSON file,
+	exists, it is memory-mapped; otherwise, the JSON file is parsed.
+	@param fname The tc.json file (possibly gzipped), or the snapshot
+	file itself
+     */
+    static ArxivUserTable load(String fname) throws IOException, JSONException {
+	File f = new File(fname);
+	File g = fname.endsWith(".bin") ? f : snapshotFile(fname);
+	if (g.exists() && (g==f || !f.exists() || g.lastModified() >= f.lastModified())) {
+	    ArxivUserTable t = new ArxivUserTable(CookieTable.map(g));
+	    System.out.println("Mapped the user table snapshot " + g + ": " + t.cookies.size() + " cookies for " + t.cookies.userCnt() + " users");
+	    return t;
+	}
+	return new ArxivUserTable(fname);
+    }
+
+    /** Reads tc.json, and saves the snapshot file */
+    public static void main(String [] argv) throws IOException, JSONException {
 
-	if (argv.length != 1) {
-	    System.out.println("Usage: ArxivUserTable filename.js");
+	if (argv.length < 1 || argv.length > 2) {
+	    System.out.println("Usage: ArxivUserTable tc.json.gz [tc.bin]");
 	    return;
 	}
 	ArxivUserTable t = new  ArxivUserTable(argv[0]);
+	File g = (argv.length>1)? new File(argv[1]) : snapshotFile(argv[0]);
+	t.cookies.save(g);
+	System.out.println("Saved the user table snapshot to " + g);
     }
 
 }
-
@@ -0,0 +1,118 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+import java.nio.charset.*;
+
+/** A hash table that maps byte strings (e.g. UTF-8 encoded field
+    values from a log file) to dense integer IDs (0, 1, 2, ...). The
+    bytes of all stored keys are kept in a single growing arena, and
+    the table itself is an open-addressing array of ints, so looking
+    up a key that is already there creates no objects at all. This
+    allows the caller to keep any per-key information in plain arrays
+    indexed by the ID.
+*/
+class ByteSymbolTable {
+    /** The bytes of all keys, one after another */
+    private byte[] arena = new byte[1<<16];
+    private int arenaLen = 0;
+    /** For each ID: where its bytes begin in the arena, how many there are,
+	and its hash code */
+    private int[] starts = new int[1024], lengths = new int[1024], hashes=new int[1024];
+    private int size = 0;
+    /** Open addressing table. Each slot contains an ID, or -1 */
+    private int[] slots;
+    private int mask;
+
+    ByteSymbolTable() {
+	slots = new int[2048];
+	Arrays.fill(slots, -1);
+	mask = slots.length-1;
+    }
+
+    /** How many distinct keys are stored */
+    int size() { return size; }
+
+    private static int hash(byte[] b, int off, int len) {
+	int h = 0;
+	for(int i=off; i<off+len; i++) h = 31*h + b[i];
+	return h ^ (h>>>16);
+    }
+
+    private boolean keyEquals(int id, byte[] b, int off, int len) {
+	if (lengths[id] != len) return false;
+	int s = starts[id];
+	for(int i=0; i<len; i++) {
+	    if (arena[s+i]!=b[off+i]) return false;
+	}
+	return true;
+    }
+
+    /** @return The ID of the key, or -1 if it's not in the table */
+    int find(byte[] b, int off, int len) {
+	int h = hash(b,off,len);
+	for(int j=h & mask; ; j=(j+1) & mask) {
+	    int id = slots[j];
+	    if (id<0) return -1;
+	    if (hashes[id]==h && keyEquals(id,b,off,len)) return id;
+	}
+    }
+
+    /** Looks up the key, adding it to the table if it's new.
+	@return The ID of the key. New keys get consecutive IDs, starting
+	from 0.
+    */
+    int add(byte[] b, int off, int len) {
+	int h = hash(b,off,len);
+	int j = h & mask;
+	for(; ; j=(j+1) & mask) {
+	    int id = slots[j];
+	    if (id<0) break;
+	    if (hashes[id]==h && keyEquals(id,b,off,len)) return id;
+	}
+	// a new key
+	if (arenaLen + len > arena.length) {
+	    arena = Arrays.copyOf(arena, Math.max(2*arena.length, arenaLen+len));
+	}
+	System.arraycopy(b, off, arena, arenaLen, len);
+	if (size == starts.length) {
+	    starts = Arrays.copyOf(starts, 2*size);
+	    lengths = Arrays.copyOf(lengths, 2*size);
+	    hashes = Arrays.copyOf(hashes, 2*size);
+	}
+	int id = size++;
+	starts[id] = arenaLen;
+	lengths[id] = len;
+	hashes[id] = h;
+	arenaLen += len;
+	slots[j] = id;
+	if (2*size > slots.length) rehash();
+	return id;
+    }
+
+    /** Doubles the size of the open addressing table */
+    private void rehash() {
+	slots = new int[2*slots.length];
+	Arrays.fill(slots, -1);
+	mask = slots.length-1;
+	for(int id=0; id<size; id++) {
+	    int j = hashes[id] & mask;
+	    while(slots[j]>=0) j=(j+1) & mask;
+	    slots[j] = id;
+	}
+    }
+
+    /** Creates a String from the stored bytes of the specified key
+	(interpreted as UTF-8). This allocates a new String every time.
+     */
+    String stringAt(int id) {
+	return stringAt(id, StandardCharsets.UTF_8);
+    }
+
+    /** Creates a String from the stored bytes of the specified key,
+	using the specified character set */
+    String stringAt(int id, Charset cs) {
+	return new String(arena, starts[id], lengths[id], cs);
+    }
+
+}
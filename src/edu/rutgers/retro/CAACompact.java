@@ -358,7 +358,7 @@ class CAACompact extends CompressedRow   implements CAAList {
 	}
 
 	ME[] entries = (ME[])v.toArray(new ME[0]);
-  	Arrays.sort(entries);
+	Arrays.sort(entries);
 	if (entries.length < n) n = entries.length;
 
 
@@ -373,14 +373,20 @@ class CAACompact extends CompressedRow   implements CAAList {
     public void add(final CAAList _incrementMap) {
 	if (!(_incrementMap instanceof CAAHashMap)) throw new IllegalArgumentException();
 	CAAHashMap incrementMap = (CAAHashMap)_incrementMap;
+	addRow(new CompressedRow(incrementMap));
+    }
+
+    /** Increments the values in this row as per x (which may contain
+	values other than 1) */
+    void addRow(CompressedRow x) {
 	pack();
 	boolean drop=!hasCandidates;
 	if (fixedStructure) {
-	    drop= add1fixed(new CompressedRow(incrementMap),drop,threshold);
+	    drop= add1fixed(x,drop,threshold);
 	} else {
-	    if (!hasCandidates) 	add(new CompressedRow(incrementMap));
+	    if (!hasCandidates) 	add(x);
 	    else {
-		drop= add1(new CompressedRow(incrementMap),drop,threshold);
+		drop= add1(x,drop,threshold);
 	    }
 	}
 	if (hasCandidates && drop) dropCandidates();
@@ -0,0 +1,113 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+import java.nio.*;
+
+/** Creates and reads userActions.dat, an optional "clustered" copy
+    of the users' histories. While userHistory.dat only contains
+    pointers into actions.dat, userActions.dat contains the (aid, utc)
+    pairs themselves, 8 bytes per action, in the same order. Thus each
+    user's actions are stored contiguously, and can be read with a
+    single read, rather than with a seek into actions.dat for each
+    action.
+
+    <p>Since the file has exactly one record for each pointer in
+    userHistory.dat, a user's section in it begins at the same record
+    number as in userHistory.dat, and no separate offset index is
+    needed: userHistoryIndex.dat serves for both files.
+
+    <p>To create the file for an existing index:
+    <pre>
+    java edu.rutgers.retro.ClusteredHistory indexDir
+    </pre>
+    UserStats creates it when run with -Dclustered=true.
+*/
+class ClusteredHistory {
+    /** Size of one record (aid, utc), in bytes */
+    static final int SIZEOF = 2*(Integer.SIZE/8);
+
+    static File file(File indexDir) {
+	return new File(indexDir, "userActions.dat");
+    }
+
+    private final ObjectRandomAccessFile raf;
+
+    /** Opens the file for reading */
+    ClusteredHistory(File indexDir) throws IOException {
+	raf = new ObjectRandomAccessFile(file(indexDir), "r", SIZEOF);
+    }
+
+    /** Is there an up-to-date clustered file in the index directory? */
+    static boolean exists(File indexDir) {
+	File f = file(indexDir), h = new File(indexDir, "userHistory.dat");
+	return f.exists() && f.lastModified() >= h.lastModified() &&
+	    f.length() == h.length()/(Integer.SIZE/8)*SIZEOF;
+    }
+
+    /** Reads n actions of a user, with one positional read operation
+	(so several threads can call this method concurrently).
+	@param offset0 The beginning of the user's section, in records
+	@param k The number of the first action to read, within the
+	user's section
+     */
+    ActionDetails[] read(int uid, int offset0, int k, int n) throws IOException {
+	ActionDetails[] as = new ActionDetails[n];
+	for(int i=0; i<n; i++) as[i] = new ActionDetails();
+	read(uid, offset0, k, n, as);
+	return as;
+    }
+
+    /** Same as above, but reads into the existing objects blanks[0]
+	through blanks[n-1], using the raf's (per-thread) batch
+	buffer */
+    void read(int uid, int offset0, int k, int n, ActionDetails[] blanks) throws IOException {
+	long bytePos = ((long)offset0 + k) * SIZEOF;
+	int i = 0;
+	while(i < n) {
+	    ByteBuffer b = raf.batchBuffer((long)(n-i) * SIZEOF);
+	    raf.readFully(b, bytePos);
+	    b.flip();
+	    int m = b.remaining() / SIZEOF;
+	    for(int j=0; j<m; j++, i++) {
+		blanks[i].uid = uid;
+		blanks[i].aid = b.getInt();
+		blanks[i].utc = b.getInt();
+	    }
+	    bytePos += (long)m * SIZEOF;
+	}
+    }
+
+    void close() throws IOException {
+	raf.close();
+    }
+
+    /** Creates userActions.dat from userHistory.dat and actions.dat
+	(or its segments, see SegmentedActionStore.open()).
+	userHistory.dat is read, and userActions.dat is written,
+	sequentially; the actions are memory-mapped. */
+    static void convert(File indexDir) throws IOException {
+	ActionStore actions = SegmentedActionStore.open(indexDir);
+	File historyFile = new File(indexDir, "userHistory.dat");
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(historyFile), 1<<20));
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file(indexDir)), 1<<20));
+	long n = historyFile.length() / (Integer.SIZE/8);
+	for(long i=0; i<n; i++) {
+	    int actionID = in.readInt();
+	    out.writeInt(actions.aid(actionID));
+	    out.writeInt(actions.utc(actionID));
+	}
+	in.close();
+	out.close();
+	actions.close();
+	System.out.println("Saved " + n + " actions to " + file(indexDir));
+    }
+
+    public static void main(String [] argv) throws IOException {
+	if (argv.length != 1) {
+	    System.out.println("Usage: ClusteredHistory indexDir");
+	    return;
+	}
+	convert(new File(argv[0]));
+    }
+}
@@ -2,6 +2,7 @@ package edu.rutgers.retro;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.commons.lang.mutable.*;
 
@@ -69,6 +70,31 @@ public class Coaccess {
 	}
     }    
 
+    /** The range [startPos, endPos) of the action list replayed by the
+	incremental computation. By default, it's the entire list. */
+    int startPos = 0, endPos = -1;
+
+    /** The end of the replayed range */
+    private int endPos() throws IOException {
+	return (endPos<0)? (int)uar.actions.lengthObject() : endPos;
+    }
+
+    /** Restricts the incremental computation to the actions within a
+	time range, located with the time index (see TimeIndex). The
+	users' actions that precede the range are excluded from their
+	histories.
+	@param fromUtc Start of the range, or -1 for the beginning of the list
+	@param toUtc End of the range (exclusive), or -1 for the end of the list
+     */
+    void setTimeRange(File indexDir, int fromUtc, int toUtc) throws IOException {
+	if (fromUtc<0 && toUtc<0) return;
+	TimeIndex ti = TimeIndex.open(indexDir, uar.actions);
+	if (fromUtc>=0) startPos = (int)ti.firstPosAtOrAfter(fromUtc);
+	if (toUtc>=0) endPos = (int)ti.firstPosAtOrAfter(toUtc);
+	System.out.println("Will replay actions in positions [" + startPos + ", " + endPos() + ")");
+	uar.startAt(startPos);
+    }
+
     /** Creates a blank map with a slot for each article of interest. */
     private HashMap<Integer,CAAHashMap> makeBlankMap() {
 	HashMap<Integer,CAAHashMap> bSet = new HashMap<Integer,CAAHashMap>();
@@ -92,22 +118,196 @@ public class Coaccess {
 	the coaccess values
      */
     void coaccessFinal() throws IOException {
-	
-	for(int i=0; i< uar.users.length; i++) {
-	    //System.out.println("User["+i+"] has " + uar.users[i].total + " actions");
-	    ActionDetails[] as = uar.actionsForUser(i);
+	new FinalPass(null).run();
+	reportTop();
+    }
+
+    /** Does the same thing as coaccessFinal(), but, instead of
+	reading all users' histories, only reads those of the users who
+	(according to the inverted index) have had actions involving the
+	articles of interest. Since these users are visited in the same
+	(uid) order, the result is exactly the same.
+     */
+    void coaccessFinal(AidIndex aidIndex) throws IOException {
+	int[] uids = aidIndex.usersOf(articles);
+	System.out.println("The inverted index lists " + uids.length + " users (out of " + uar.userCnt() + ") for the articles of interest");
+	new FinalPass(uids).run();
+	reportTop();
+    }
+
+    /** Number of threads used by coaccessFinal(); with 1 (the
+	default), the users are processed by a simple loop in the main
+	thread */
+    static int threads = 1;
+
+    /** One worker's contribution to one row of the coaccess matrix,
+	in FinalPass. The column indexes of the unit increments are
+	appended to ones[]; once MAX_ONES of them have accumulated, they
+	are sorted and merged into sum (in the same way as CAACompact
+	packs its ones[]) */
+    static class RowDelta {
+	static final int MAX_ONES = 1<<16;
+	CompressedRow sum = new CompressedRow(0);
+	int[] ones = new int[16];
+	int onesCnt = 0;
+	void add(int j) {
+	    if (onesCnt == ones.length) {
+		if (onesCnt >= MAX_ONES) pack();
+		else ones = Arrays.copyOf(ones, 2*onesCnt);
+	    }
+	    ones[onesCnt++] = j;
+	}
+	/** Merges ones[] into sum
+	    @return sum */
+	CompressedRow pack() {
+	    if (onesCnt > 0) {
+		sum.add(new CompressedRow(ones, onesCnt));
+		onesCnt = 0;
+	    }
+	    return sum;
+	}
+    }
+
+    /** Adds a row of increments (possibly other than 1) to a row of
+	the coaccess matrix */
+    static void addRow(CAAList caa, CompressedRow x) {
+	if (caa instanceof CAACompact) {
+	    ((CAACompact)caa).addRow(x);
+	} else {
+	    for(int i=0; i<x.keysCnt; i++) caa.addValue(x.keys[i], x.values[i]);
+	}
+    }
+
+    /** The loop over the users' histories in coaccessFinal(). Each
+	user's coaccess pairs are accumulated in RowDelta objects (one
+	per article of interest); at the end, each matrix row is
+	incremented by the sum of the deltas for it. With threads &gt;
+	1, this is done with a ForkJoinPool: the users are split into
+	chunks of up to CHUNK users, and each worker thread has its own
+	deltas, so the workers don't share any writable data. The rows
+	are merged in parallel too, since they are separate objects.
+	Since coaccess values are just counts, the result is exactly the
+	same as with one thread.
+    */
+    private class FinalPass {
+	/** Users per leaf task */
+	static final int CHUNK = 64;
+	/** The users to process, or null for all users */
+	final int[] uids;
+	final int userCnt;
+	/** The articles of interest, in increasing order */
+	final int[] rowAids;
+	/** Maps aid to its position in rowAids[], or -1 */
+	final int[] rowOf;
+	/** Each worker's deltas, indexed like rowAids[] */
+	final Vector<RowDelta[]> workers = new Vector<RowDelta[]>();
+	final ThreadLocal<RowDelta[]> deltas = new ThreadLocal<RowDelta[]>() {
+	    protected RowDelta[] initialValue() {
+		RowDelta[] d = new RowDelta[rowAids.length];
+		workers.add(d);
+		return d;
+	    }
+	};
+
+	FinalPass(int[] _uids) {
+	    uids = _uids;
+	    userCnt = (uids==null)? uar.userCnt() : uids.length;
+	    rowAids = new int[aSet.size()];
+	    int r = 0;
+	    for(int aid: new TreeSet<Integer>(aSet.keySet())) rowAids[r++] = aid;
+	    int m = uar.aidNameTable.size();
+	    for(int aid: rowAids) m = Math.max(m, aid+1);
+	    rowOf = new int[m];
+	    Arrays.fill(rowOf, -1);
+	    for(r=0; r<rowAids.length; r++) rowOf[rowAids[r]] = r;
+	}
+
+	/** Adds the coaccess pairs of the user No. i to the deltas: for
+	    each action on an article of interest, a unit increment at
+	    each other article in the user's history */
+	void addUser(int i, RowDelta[] d) throws IOException {
+	    ActionDetails[] as = uar.actionsForUser((uids==null)? i : uids[i]);
 	    for(ActionDetails x: as) {
-		CAAList caa = aSet.get(x.aid);
-		if (caa!=null) {
-		    for(ActionDetails y: as) {	    
-			if (y.aid!=x.aid) {
-			    caa.addValue(y.aid, 1);
-			}
-		    }
+		int r = rowOf[x.aid];
+		if (r<0) continue;
+		if (d[r]==null) d[r] = new RowDelta();
+		for(ActionDetails y: as) {
+		    if (y.aid!=x.aid) d[r].add(y.aid);
 		}
 	    }
 	}
-	reportTop();
+
+	/** Adds all workers' deltas to the row No. r */
+	void mergeRow(int r) {
+	    CompressedRow sum = null;
+	    for(RowDelta[] d: workers) {
+		if (d[r]==null) continue;
+		CompressedRow x = d[r].pack();
+		if (sum==null) sum = x;
+		else sum.add(x);
+	    }
+	    if (sum!=null) addRow(aSet.get(rowAids[r]), sum);
+	}
+
+	/** Processes the users No. i1 through i2-1 */
+	class Part extends RecursiveAction {
+	    private static final long serialVersionUID = 1L;
+	    final int i1, i2;
+	    Part(int _i1, int _i2) {
+		i1 = _i1;
+		i2 = _i2;
+	    }
+	    protected void compute() {
+		if (i2 - i1 > CHUNK) {
+		    int mid = (i1 + i2) >>> 1;
+		    invokeAll(new Part(i1, mid), new Part(mid, i2));
+		    return;
+		}
+		RowDelta[] d = deltas.get();
+		try {
+		    for(int i=i1; i<i2; i++) addUser(i, d);
+		} catch(IOException ex) {
+		    throw new UncheckedIOException(ex);
+		}
+	    }
+	}
+
+	/** Adds the deltas to the rows No. r1 through r2-1 */
+	class Merge extends RecursiveAction {
+	    private static final long serialVersionUID = 1L;
+	    final int r1, r2;
+	    Merge(int _r1, int _r2) {
+		r1 = _r1;
+		r2 = _r2;
+	    }
+	    protected void compute() {
+		if (r2 - r1 > 1) {
+		    int mid = (r1 + r2) >>> 1;
+		    invokeAll(new Merge(r1, mid), new Merge(mid, r2));
+		    return;
+		}
+		mergeRow(r1);
+	    }
+	}
+
+	void run() throws IOException {
+	    if (threads <= 1) {
+		RowDelta[] d = deltas.get();
+		for(int i=0; i<userCnt; i++) addUser(i, d);
+		for(int r=0; r<rowAids.length; r++) mergeRow(r);
+		return;
+	    }
+	    System.out.println("Will use " + threads + " threads for " + userCnt + " users");
+	    ForkJoinPool pool = new ForkJoinPool(threads);
+	    try {
+		pool.invoke(new Part(0, userCnt));
+		if (rowAids.length > 0) pool.invoke(new Merge(0, rowAids.length));
+	    } catch(UncheckedIOException ex) {
+		throw ex.getCause();
+	    } finally {
+		pool.shutdown();
+	    }
+	}
     }
 
     /** Prints the top coaccess values for all articles of interest. */
@@ -317,6 +517,12 @@ public class Coaccess {
 	}
     }
 
+    static int[] toArray(Vector<Integer> v) {
+	int[] a = new int[v.size()];
+	for(int i=0; i<a.length; i++) a[i] = v.elementAt(i);
+	return a;
+    }
+
     static boolean arraysEqual( int[] a, int[] b) {
 	if (a.length != b.length) return false;
 	for(int i=0; i<a.length; i++) {
@@ -353,24 +559,26 @@ public class Coaccess {
 	Profiler.profiler.push(Profiler.Code.COA_inc_other);
 	int pos = pos0;
 	HashMap<Integer,CAAHashMap> bSet = makeBlankMap(); // this step's contribution to coaccess data: a row for each article of interest
-	final int len = (int)uar.actionRAF.lengthObject();
+	final int len = endPos();
 	ActionDetails a = new ActionDetails();
+	final UserTable users = uar.userTable;
 
 	for(PrivacyLog pLog: utSet.values()) pLog.minusDataVec.clear();
 
-	for(; pos < len && uar.actionRAF.read(a,pos).utc < t1; pos++) {
+	// only the utc column is needed to find the end of the step
+	for(; pos < len && uar.actions.utc(pos) < t1; pos++) {
+	    uar.actions.read(a,pos);
 
-	    UserActionReader.UserEntry user = uar.users[a.uid];
+	    ArticlesOfInterest aoi = users.ofInterest(a.uid);
 	    CAAList caa = bSet.get(a.aid);
 
 	    boolean doMinus = utSet.containsKey(a.uid);
 	    MinusData minusSet = null;
 	    if (doMinus) minusSet = new MinusData(a);
-	    user.enableOfInterest(windowSec);
-	    if (!user.ofInterest.isEmpty()) {  // update CAA for all articles of interest seen earlier by this user
+	    if (aoi!=null && !aoi.isEmpty()) {  // update CAA for all articles of interest seen earlier by this user
 		Profiler.profiler.push(Profiler.Code.COA_update_coa1);
 
-		for(int j: user.ofInterest.listArticles(a.utc)) {
+		for(int j: aoi.listArticles(a.utc)) {
 		    bSet.get(j).addValue(a.aid, 1);
 		    if (doMinus) minusSet.add(j,a.aid, -1);
 		}
@@ -379,20 +587,20 @@ public class Coaccess {
 
 	    if (caa!=null) { // this is an article of interest
 		Profiler.profiler.push(Profiler.Code.COA_update_coa2);
-		user.ofInterest.addAction(a);
+		users.enableOfInterest(a.uid, windowSec).addAction(a);
 
 		CAAHashMap minusCaa = null;
 		if (doMinus) minusSet.put(a.aid, minusCaa=new CAAHashMap());
-		ActionDetails[] as = (windowSec < 0)?
-		    uar.earlyActionsForUser(a.uid) :
-		    uar.recentActionsForUser(a.uid, a.utc-windowSec);
-		for(ActionDetails y: as) {	    
-		    caa.addValue(y.aid, 1);
-		    if (doMinus) minusCaa.addValue(y.aid, -1);
+		HistoryCache.Slice as = (windowSec < 0)?
+		    uar.earlySlice(a.uid) :
+		    uar.recentSlice(a.uid, a.utc-windowSec);
+		for(int k=as.from; k<as.to; k++) {
+		    caa.addValue(as.aids[k], 1);
+		    if (doMinus) minusCaa.addValue(as.aids[k], -1);
 		}
 		Profiler.profiler.pop(Profiler.Code.COA_update_coa2);
 	    }
-	    user.readCnt++;
+	    uar.advance(a);
 	    if (doMinus) utSet.get(a.uid).minusDataVec.add(minusSet);
 
 	}
@@ -416,9 +624,9 @@ public class Coaccess {
 	@param stepSec in seconds (e.g. 24*3600)
      */
     void coaccessIncremental(int stepSec, int windowSec) throws IOException {
-	int pos = 0;
-	final int utc0 = (uar.actionRAF.read(new ActionDetails(),pos).utc/stepSec) * stepSec;
-	final int len = (int)uar.actionRAF.lengthObject();
+	int pos = startPos;
+	final int len = endPos();
+	final int utc0 = (pos<len)? (uar.actions.utc(pos)/stepSec) * stepSec : 0;
 	int utc1 = utc0;
 	while(pos<len) {
 	    utc1 += stepSec;
@@ -458,49 +666,49 @@ public class Coaccess {
     void coaccessImmediate(int windowSec) throws IOException {
 
 	final int stepSec = 3600 * 24 * 7;
-	int nextPrintUtc = (uar.actionRAF.read(new ActionDetails(),0).utc/stepSec) * stepSec;
+	final int len = endPos();
+	int nextPrintUtc = (startPos<len)? (uar.actions.utc(startPos)/stepSec) * stepSec : 0;
 
 	System.out.println("Immediate-update recommender starts; CA nnz=" + mapSize());
 
-	final int len = (int)uar.actionRAF.lengthObject();
 	ActionDetails a = new ActionDetails();
+	final UserTable users = uar.userTable;
 	for(PrivacyLog pLog: utSet.values()) pLog.minusDataVec.clear();
 
-	for(int pos = 0; pos<len; pos++) { // for all actions, ever
+	for(int pos = startPos; pos<len; pos++) { // for all actions, ever
 	    // read an action into a
-	    uar.actionRAF.read(a,pos); 
+	    uar.actions.read(a,pos); 
 	    // the user who carried out this action
-	    UserActionReader.UserEntry user = uar.users[a.uid];
+	    ArticlesOfInterest aoi = users.ofInterest(a.uid);
 	    CAAList caa = aSet.get(a.aid); 
 	    // do we need to collect privacy stats for this user?
 	    boolean doMinus = utSet.containsKey(a.uid); 
 	    // contribution of this particular action (with minus sign)
 	    MinusData minusSet = doMinus? new MinusData(a) : null;
 			
-	    user.enableOfInterest(windowSec);
-	    if (!user.ofInterest.isEmpty()) {  // update CAA for the articles of interest seen earlier by this user
-		for(int j: user.ofInterest.listArticles(a.utc)) {
+	    if (aoi!=null && !aoi.isEmpty()) {  // update CAA for the articles of interest seen earlier by this user
+		for(int j: aoi.listArticles(a.utc)) {
 		    aSet.get(j).addValue(a.aid, 1);
 		    if (doMinus) minusSet.add(j,a.aid, -1);
 		}
 	    }
 
 	    if (caa!=null) { // this is an article of interest
-		user.ofInterest.addAction(a);
+		users.enableOfInterest(a.uid, windowSec).addAction(a);
 
 		CAAHashMap minusCaa = null;
 		if (doMinus) minusSet.put(a.aid, minusCaa=new CAAHashMap());
 
-		ActionDetails[] as = (windowSec < 0)?
-		    uar.earlyActionsForUser(a.uid) :
-		    uar.recentActionsForUser(a.uid, a.utc-windowSec);
+		HistoryCache.Slice as = (windowSec < 0)?
+		    uar.earlySlice(a.uid) :
+		    uar.recentSlice(a.uid, a.utc-windowSec);
 
-		for(ActionDetails y: as) {	    
-		    caa.addValue(y.aid, 1);
-		    if (doMinus) minusCaa.addValue(y.aid, -1);
+		for(int k=as.from; k<as.to; k++) {
+		    caa.addValue(as.aids[k], 1);
+		    if (doMinus) minusCaa.addValue(as.aids[k], -1);
 		}
 	    }
-	    user.readCnt++;
+	    uar.advance(a);
 
 	    if (doMinus) {
 		PrivacyLog pLog = utSet.get(a.uid);
@@ -565,6 +773,13 @@ f375259a9068 0b2a849197ac e19772187909 dac0bf416e4c b4a8892d4f8b
 	ParseConfig ht = new ParseConfig();
 
 	Profiler.profiler.setOn( ht.getOption("profile", true));
+	UserActionReader.mapActions = ht.getOption("mapActions", UserActionReader.mapActions);
+	UserActionReader.columnarActions = ht.getOption("columnar", UserActionReader.columnarActions);
+	UserActionReader.useClustered = ht.getOption("clustered", UserActionReader.useClustered);
+	UserActionReader.cacheBudget = ((long)ht.getOption("cacheMB", (int)(UserActionReader.cacheBudget>>20)))<<20;
+	UserActionReader.ioThreads = ht.getOption("ioThreads", UserActionReader.ioThreads);
+	UserActionReader.batchActions = ht.getOption("batchActions", UserActionReader.batchActions);
+	threads = ht.getOption("threads", threads);
 
 	String indexPath = ht.getOption("index", "out");
 	File indexDir = new File(indexPath);
@@ -576,6 +791,11 @@ f375259a9068 0b2a849197ac e19772187909 dac0bf416e4c b4a8892d4f8b
 	boolean useStructure = ht.getOption("structure", true);
 	double hours = ht.getOptionDouble("step", 24);
 	int windowSec = ht.getOption("window", -1);
+	// use the inverted index (if it exists) in non-incremental mode
+	boolean useInverted = ht.getOption("inverted", true);
+	// replay only the actions in this time range (incremental mode)
+	int fromUtc = ht.getOption("fromUtc", -1);
+	int toUtc = ht.getOption("toUtc", -1);
 
 	// The number of top articles that are displayed as rec list 
 	final int n = ht.getOption("n", 10);
@@ -610,11 +830,16 @@ f375259a9068 0b2a849197ac e19772187909 dac0bf416e4c b4a8892d4f8b
 		int uid = cmd.equals("uid")? Integer.parseInt(s) :
 		    uar.userNameTable.get(s);
 		usersToTest.add(uid);
-		ActionDetails[] as = uar.actionsForUser(uid);
+	    }
+	    // the histories are read in batches, each in file order
+	    UserActionReader.HistoryBatches hs = uar.new HistoryBatches(toArray(usersToTest));
+	    for(int i=0; i<usersToTest.size(); i++) {
+		int uid = usersToTest.elementAt(i);
 		String uname = uar.userNameTable.nameAt(uid);
-		System.out.println("For user " +uid+ " ("+uname+"), adding " + as.length+ " articles" );
-		for(ActionDetails x: as) {
-		    articles.add(x.aid);
+		HistoryCache.Slice h = hs.get(i);
+		System.out.println("For user " +uid+ " ("+uname+"), adding " + h.size()+ " articles" );
+		for(int k=h.from; k<h.to; k++) {
+		    articles.add(h.aids[k]);
 		}
 	    }
 	} else if (cmd.equals("urange")) {  // (i=a1; i<a2; i+= a3)
@@ -629,6 +854,13 @@ f375259a9068 0b2a849197ac e19772187909 dac0bf416e4c b4a8892d4f8b
 	    HashMap<String, UserStats.UserInfo> uisMap = new HashMap<String, UserStats.UserInfo>();
 	    for(UserStats.UserInfo ui: uis) { uisMap.put( ui.uid, ui); }
 
+	    for(int uid=uid1; uid<uid2; uid+=step) {
+		String uname = uar.userNameTable.nameAt(uid);
+		if (!uisMap.get(uname).excludeFromNowOn) usersToTest.add(uid);
+	    }
+	    // the histories are read in batches, each in file order
+	    UserActionReader.HistoryBatches hs = uar.new HistoryBatches(toArray(usersToTest));
+	    int i = 0;
 	    for(int uid=uid1; uid<uid2; uid+=step) {
 		String uname = uar.userNameTable.nameAt(uid);
 		if (uisMap.get(uname).excludeFromNowOn) {
@@ -636,11 +868,10 @@ f375259a9068 0b2a849197ac e19772187909 dac0bf416e4c b4a8892d4f8b
 		    continue;
 		}
 
-		usersToTest.add(uid);
-		ActionDetails[] as = uar.actionsForUser(uid);
-		System.out.println("For user " + uid + " ("+uname+"), adding " + as.length + " articles" );
-		for(ActionDetails x: as) {
-		    articles.add(x.aid);
+		HistoryCache.Slice h = hs.get(i++);
+		System.out.println("For user " + uid + " ("+uname+"), adding " + h.size() + " articles" );
+		for(int k=h.from; k<h.to; k++) {
+		    articles.add(h.aids[k]);
 		}
 	
 	    }
@@ -659,16 +890,22 @@ f375259a9068 0b2a849197ac e19772187909 dac0bf416e4c b4a8892d4f8b
 	Coaccess coa = new Coaccess(uar, articles, usersToTest, useCompact, useStructure, indexDir, n);
 	Profiler.profiler.push(Profiler.Code.OTHER);
 	if (inc) {
+	    coa.setTimeRange(indexDir, fromUtc, toUtc);
 	    if (hours==0) {
 		coa.coaccessImmediate(windowSec);
 	    } else {
 		final int stepSec = (int)(3600*hours);
 		coa.coaccessIncremental(stepSec, windowSec);
 	    }
+	} else if (useInverted && AidIndex.exists(indexDir)) {
+	    AidIndex aidIndex = new AidIndex(indexDir);
+	    coa.coaccessFinal(aidIndex);
+	    aidIndex.close();
 	} else {
 	    coa.coaccessFinal();
 	}
 	Profiler.profiler.pop(Profiler.Code.OTHER);
+	uar.reportCache();
 
 	System.out.println("===Profiler report (wall clock time)===");
 	System.out.println(     Profiler.profiler.report());
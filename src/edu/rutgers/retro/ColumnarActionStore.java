@@ -0,0 +1,283 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/** An alternative, columnar, format for the list of all actions,
+    and an ActionStore that reads it. Instead of storing (uid, aid,
+    utc) rows in one file, as actions.dat does, each column is stored
+    in its own file (actions.uid.col, actions.aid.col,
+    actions.utc.col), so that a scan that only needs, say, timestamps
+    only reads the timestamp file.
+
+    <p>Each column is divided into blocks of BLOCK values, which are
+    compressed separately. The values of uid and aid are stored as
+    varints; the values of utc, as varints of the (zigzag-encoded)
+    differences between consecutive values, which, since the actions
+    come (almost) in chronological order, mostly take 1 or 2 bytes.
+    The block directory (actions.blocks) contains, for each block, the
+    offset of its data in each column file, and the min and max utc
+    values in the block. The layout of actions.blocks is as follows
+    (all numbers big-endian):
+    <pre>
+    int MAGIC, int BLOCK, long n, int blockCnt
+    blockCnt+1 times: long uidOffset, long aidOffset, long utcOffset, int minUtc, int maxUtc
+    </pre>
+    (The last entry contains the column file lengths, and no utc range).
+    The utc ranges are not used by the reader; positions by time are
+    found with TimeIndex.
+
+    <p>Reading a value requires decoding the column's whole block; a
+    small cache of decoded blocks is kept (one per thread, so that
+    several threads can read from the store concurrently; the column
+    files are read with positional reads). This makes sequential
+    scans fast; the blocks are kept short, so that random access (as
+    done when reading users' histories) does not cost too much, but
+    it is still slower than with MappedActionStore.
+
+    <p>To create the columnar files from an existing index:
+    <pre>
+    java edu.rutgers.retro.ColumnarActionStore indexDir
+    </pre>
+    To use them, run Coaccess etc. with -Dcolumnar=true.
+*/
+class ColumnarActionStore implements ActionStore {
+    static final int MAGIC = 0x41434F31; // "ACO1"
+    /** Number of values in one block */
+    static final int BLOCK = 512;
+    /** Number of decoded blocks cached per column */
+    static final int CACHE_BLOCKS = 64;
+    static final String[] COLUMNS = {"uid", "aid", "utc"};
+
+    private final long n;
+    private final Column uids, aids, utcs;
+
+    static File blocksFile(File indexDir) {
+	return new File(indexDir, "actions.blocks");
+    }
+
+    static File columnFile(File indexDir, String col) {
+	return new File(indexDir, "actions." + col + ".col");
+    }
+
+    /** Does the directory contain the columnar action files, and are
+	they up to date with actions.dat (not older than it, and
+	with the same number of records)? If actions.dat has been
+	removed after splitting it into segments, the columns are
+	compared with the segment list instead. */
+    static boolean exists(File indexDir) {
+	File f = blocksFile(indexDir), a = new File(indexDir, "actions.dat");
+	boolean segmented = !a.exists() && SegmentedActionStore.listFile(indexDir).exists();
+	if (segmented) a = SegmentedActionStore.listFile(indexDir);
+	if (!f.exists() || f.lastModified() < a.lastModified()) return false;
+	try {
+	    long cnt = segmented? new SegmentedActionStore(indexDir).lengthObject() :
+		a.length() / MappedActionStore.SIZEOF;
+	    DataInputStream in = new DataInputStream(new FileInputStream(f));
+	    try {
+		if (in.readInt() != MAGIC || in.readInt() != BLOCK) return false;
+		return in.readLong() == cnt;
+	    } finally {
+		in.close();
+	    }
+	} catch(IOException ex) {
+	    return false;
+	}
+    }
+
+    ColumnarActionStore(File indexDir) throws IOException {
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(blocksFile(indexDir)), 1<<16));
+	if (in.readInt() != MAGIC) throw new IOException("Not a block directory file: " + blocksFile(indexDir));
+	if (in.readInt() != BLOCK) throw new IOException("Block size mismatch in " + blocksFile(indexDir));
+	n = in.readLong();
+	int blockCnt = in.readInt();
+	long[][] offsets = new long[3][blockCnt+1];
+	for(int b=0; b<=blockCnt; b++) {
+	    for(int c=0; c<3; c++) offsets[c][b] = in.readLong();
+	    in.readInt(); // the utc range
+	    in.readInt();
+	}
+	in.close();
+	uids = new Column(columnFile(indexDir, COLUMNS[0]), offsets[0], false);
+	aids = new Column(columnFile(indexDir, COLUMNS[1]), offsets[1], false);
+	utcs = new Column(columnFile(indexDir, COLUMNS[2]), offsets[2], true);
+    }
+
+    /** One thread's cache of decoded blocks of one column */
+    private static class BlockCache {
+	final int[][] cache = new int[CACHE_BLOCKS][];
+	/** Which block is in each cache slot */
+	final int[] cached = new int[CACHE_BLOCKS];
+	final ByteBuffer buf = ByteBuffer.allocate(BLOCK * 5);
+	BlockCache() {
+	    Arrays.fill(cached, -1);
+	}
+    }
+
+    /** One column file, with a cache of decoded blocks */
+    private class Column {
+	private final RandomAccessFile raf;
+	private final FileChannel ch;
+	private final long[] offsets;
+	/** Are the values delta-coded? */
+	private final boolean delta;
+	private final ThreadLocal<BlockCache> caches = new ThreadLocal<BlockCache>() {
+	    protected BlockCache initialValue() {
+		return new BlockCache();
+	    }
+	};
+
+	Column(File f, long[] _offsets, boolean _delta) throws IOException {
+	    raf = new RandomAccessFile(f, "r");
+	    ch = raf.getChannel();
+	    offsets = _offsets;
+	    delta = _delta;
+	}
+
+	/** The decoded values of the specified block */
+	int[] block(int b) throws IOException {
+	    BlockCache c = caches.get();
+	    int[][] cache = c.cache;
+	    int[] cached = c.cached;
+	    ByteBuffer buf = c.buf;
+	    int slot = b % CACHE_BLOCKS;
+	    if (cached[slot]==b) return cache[slot];
+	    int len = (int)(offsets[b+1] - offsets[b]);
+	    buf.clear();
+	    buf.limit(len);
+	    long pos = offsets[b];
+	    while(buf.hasRemaining()) {
+		int m = ch.read(buf, pos + buf.position());
+		if (m<0) throw new EOFException("Unexpected end of a column file");
+	    }
+	    buf.flip();
+	    int cnt = (int)Math.min(BLOCK, n - (long)b*BLOCK);
+	    int[] v = cache[slot];
+	    if (v==null) v = cache[slot] = new int[BLOCK];
+	    int prev = 0;
+	    for(int i=0; i<cnt; i++) {
+		int x = readVarint(buf);
+		if (delta) {
+		    x = prev + ((x>>>1) ^ -(x&1));
+		    prev = x;
+		}
+		v[i] = x;
+	    }
+	    cached[slot] = b;
+	    return v;
+	}
+
+	int get(long pos) throws IOException {
+	    return block((int)(pos / BLOCK))[(int)(pos % BLOCK)];
+	}
+
+	void close() throws IOException {
+	    raf.close();
+	}
+    }
+
+    public long lengthObject() { return n; }
+
+    public ActionDetails read(ActionDetails blank, long pos) throws IOException {
+	blank.uid = uids.get(pos);
+	blank.aid = aids.get(pos);
+	blank.utc = utcs.get(pos);
+	return blank;
+    }
+
+    public void readMany(int[] pos, int off, int n, ActionDetails[] blanks) throws IOException {
+	for(int k=0; k<n; k++) read(blanks[k], pos[off+k]);
+    }
+
+    public int uid(long pos) throws IOException { return uids.get(pos); }
+    public int aid(long pos) throws IOException { return aids.get(pos); }
+    public int utc(long pos) throws IOException { return utcs.get(pos); }
+
+    public void close() throws IOException {
+	uids.close();
+	aids.close();
+	utcs.close();
+    }
+
+    static int readVarint(ByteBuffer b) {
+	int x = 0;
+	for(int shift=0; ; shift+=7) {
+	    int q = b.get();
+	    x |= (q & 0x7F) << shift;
+	    if ((q & 0x80)==0) return x;
+	}
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int x) {
+	while((x & ~0x7F) != 0) {
+	    out.write((x & 0x7F) | 0x80);
+	    x >>>= 7;
+	}
+	out.write(x);
+    }
+
+    /** Creates the columnar files from actions.dat (or its segments,
+	see SegmentedActionStore.open()) in the same directory */
+    static void convert(File indexDir) throws IOException {
+	ActionStore in = SegmentedActionStore.open(indexDir);
+	final int sizeof = new ActionDetails().sizeof();
+	long n = in.lengthObject();
+	int blockCnt = (int)((n + BLOCK - 1) / BLOCK);
+
+	OutputStream[] outs = new OutputStream[3];
+	for(int c=0; c<3; c++) {
+	    outs[c] = new BufferedOutputStream(new FileOutputStream(columnFile(indexDir, COLUMNS[c])), 1<<20);
+	}
+	DataOutputStream dir = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(blocksFile(indexDir)), 1<<16));
+	dir.writeInt(MAGIC);
+	dir.writeInt(BLOCK);
+	dir.writeLong(n);
+	dir.writeInt(blockCnt);
+
+	ByteArrayOutputStream[] bufs = new ByteArrayOutputStream[3];
+	for(int c=0; c<3; c++) bufs[c] = new ByteArrayOutputStream(BLOCK * 5);
+	long[] offsets = new long[3];
+	long pos = 0;
+	for(int b=0; b<blockCnt; b++) {
+	    int cnt = (int)Math.min(BLOCK, n - pos);
+	    int prev = 0, min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+	    for(int i=0; i<cnt; i++) {
+		long p = pos + i;
+		int uid = in.uid(p), aid = in.aid(p), utc = in.utc(p);
+		writeVarint(bufs[0], uid);
+		writeVarint(bufs[1], aid);
+		int d = utc - prev;
+		writeVarint(bufs[2], (d << 1) ^ (d >> 31));
+		prev = utc;
+		min = Math.min(min, utc);
+		max = Math.max(max, utc);
+	    }
+	    pos += cnt;
+	    for(int c=0; c<3; c++) dir.writeLong(offsets[c]);
+	    dir.writeInt(min);
+	    dir.writeInt(max);
+	    for(int c=0; c<3; c++) {
+		bufs[c].writeTo(outs[c]);
+		offsets[c] += bufs[c].size();
+		bufs[c].reset();
+	    }
+	}
+	for(int c=0; c<3; c++) dir.writeLong(offsets[c]);
+	dir.writeInt(0);
+	dir.writeInt(0);
+	dir.close();
+	for(OutputStream out: outs) out.close();
+	in.close();
+	System.out.println("Converted " + n + " actions (" + (n*sizeof) + " bytes) into " + blockCnt + " blocks; column sizes: uid=" + offsets[0] + ", aid=" + offsets[1] + ", utc=" + offsets[2] + " bytes");
+    }
+
+    public static void main(String [] argv) throws IOException {
+	if (argv.length != 1) {
+	    System.out.println("Usage: ColumnarActionStore indexDir");
+	    return;
+	}
+	convert(new File(argv[0]));
+    }
+}
@@ -30,6 +30,9 @@ class CookieArxivUserInferrer extends ArxivUserInferrer {
 	this(t,true);
     }
 
+    /** The IP address is not used by this inferrer */
+    boolean usesIp() { return false; }
+
     /** Looks at the ip and cookie information, and decides who was
 	the user carrying out the action. 
 
@@ -44,21 +47,21 @@ class CookieArxivUserInferrer extends ArxivUserInferrer {
      */
     String inferUser(String ip_hash, String cookie_hash) {
 	if (cookie_hash==null ||cookie_hash.equals("")) {
-	    ignoredCnt ++;
+	    counts().count(IGNORED);
 	    return null;
 	} 
 
-	String u = table.cookie2user.get(cookie_hash);
+	String u = table.cookie2user(cookie_hash);
 	if (u!=null) {
-	    fromUserCookieCnt++;
+	    counts().count(FROM_USER_COOKIE);
 	    return u;
 	} else if (acceptAnon) { // accept anon user
-	    fromAnonCookieCnt++;
+	    counts().count(FROM_ANON_COOKIE);
 	    // avoiding potential ambiguity between cookie_hash
 	    // and user_hash values
 	    return "C-" + cookie_hash;
 	} else { // ignore anon user
-	    ignoredCnt ++;
+	    counts().count(IGNORED);
 	    return null;
 	}
     }
@@ -0,0 +1,252 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+
+/** A compact map from cookie hashes to registered users, used by
+    ArxivUserTable. Users are numbered 0, 1, 2, ...; each cookie maps to
+    one user number.
+
+    <p>Cookie hashes that consist of exactly 16 lower-case hex digits
+    (which is the case for all cookies in tc.json) are packed into
+    longs, and stored in an open-addressing table of longs, with a
+    parallel table of ints for the user numbers. That's 12 bytes
+    per slot, rather than several hundred bytes per HashMap entry
+    with two Strings. Any other cookies go to a small HashMap.
+
+    <p>The table can be saved into a binary snapshot file, which can
+    later be memory-mapped, so that no parsing and no object creation
+    are required at startup; user names are decoded only when asked for.
+    The file layout is as follows (all numbers big-endian):
+    <pre>
+    int MAGIC, int userCnt, int slotCnt, int size, int extraCnt, int nameBytesLen
+    long[slotCnt]  packed cookies
+    int[slotCnt]   user numbers (-1 for empty slots)
+    int[userCnt+1] offsets of user names in the name area
+    byte[nameBytesLen] user names, UTF-8
+    extraCnt times: (int user, UTF cookie)  -- the cookies that can't be packed
+    </pre>
+*/
+class CookieTable {
+    static final int MAGIC = 0x434B5431; // "CKT1"
+    static final int HEADER = 6 * 4;
+
+    /** Open addressing table. An empty slot has -1 in vals */
+    private LongBuffer keys;
+    private IntBuffer vals;
+    private int mask;
+    /** The number of cookies in the (long) table */
+    private int size=0;
+    /** Cookies that can't be packed into longs */
+    private final HashMap<String,Integer> extra = new HashMap<String,Integer>();
+
+    /** User names (possibly, decoded lazily from the mapped file) */
+    private String[] names;
+    private int userCnt = 0;
+    /** Only used with a mapped file */
+    private IntBuffer nameOffsets = null;
+    private ByteBuffer nameBytes = null;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Creates an empty table, to be filled with put() */
+    CookieTable() {
+	names = new String[1024];
+	allocate(1<<10);
+    }
+
+    private void allocate(int slotCnt) {
+	keys = LongBuffer.wrap(new long[slotCnt]);
+	int[] v = new int[slotCnt];
+	Arrays.fill(v, -1);
+	vals = IntBuffer.wrap(v);
+	mask = slotCnt-1;
+	size = 0;
+    }
+
+    /** Adds a user to the table.
+	@return The user's number
+     */
+    int addUser(String name) {
+	if (userCnt == names.length) names = Arrays.copyOf(names, 2*userCnt);
+	names[userCnt] = name;
+	return userCnt++;
+    }
+
+    int userCnt() { return userCnt; }
+
+    /** The number of cookies in the table */
+    int size() { return size + extra.size(); }
+
+    /** Is the cookie made of exactly 16 lower-case hex digits? */
+    private static boolean packable(String cookie) {
+	if (cookie.length() != 16) return false;
+	for(int i=0; i<16; i++) {
+	    char c = cookie.charAt(i);
+	    if (!(c>='0' && c<='9' || c>='a' && c<='f')) return false;
+	}
+	return true;
+    }
+
+    /** Packs a cookie for which packable() is true into a long */
+    private static long pack(String cookie) {
+	long x = 0;
+	for(int i=0; i<16; i++) {
+	    char c = cookie.charAt(i);
+	    x = (x<<4) | (c<='9' ? c - '0' : c - 'a' + 10);
+	}
+	return x;
+    }
+
+    private static int hash(long x) {
+	x *= 0x9E3779B97F4A7C15L;
+	return (int)(x ^ (x>>>32));
+    }
+
+    /** Associates a cookie with a user. If the cookie already is
+	in the table, its previous association is replaced, as with
+	HashMap.put(). */
+    void put(String cookie, int user) {
+	if (!packable(cookie)) {
+	    extra.put(cookie, user);
+	    return;
+	}
+	long x = pack(cookie);
+	int j = hash(x) & mask;
+	for(; vals.get(j)>=0; j = (j+1) & mask) {
+	    if (keys.get(j)==x) {
+		vals.put(j, user);
+		return;
+	    }
+	}
+	keys.put(j, x);
+	vals.put(j, user);
+	size++;
+	if (2*size > mask+1) rehash();
+    }
+
+    /** Doubles the size of the open addressing table */
+    private void rehash() {
+	LongBuffer oldKeys = keys;
+	IntBuffer oldVals = vals;
+	allocate(2*(mask+1));
+	for(int i=0; i<oldVals.capacity(); i++) {
+	    int v = oldVals.get(i);
+	    if (v<0) continue;
+	    long x = oldKeys.get(i);
+	    int j = hash(x) & mask;
+	    while(vals.get(j)>=0) j = (j+1) & mask;
+	    keys.put(j, x);
+	    vals.put(j, v);
+	    size++;
+	}
+    }
+
+    /** @return The number of the user associated with the cookie, or -1 if there is none */
+    int get(String cookie) {
+	if (!packable(cookie)) {
+	    Integer u = extra.get(cookie);
+	    return (u==null)? -1 : u.intValue();
+	}
+	long x = pack(cookie);
+	for(int j = hash(x) & mask; ; j = (j+1) & mask) {
+	    int v = vals.get(j);
+	    if (v<0) return -1;
+	    if (keys.get(j)==x) return v;
+	}
+    }
+
+    /** The name of a user, by number */
+    String userName(int i) {
+	if (names[i]==null) {
+	    int start = nameOffsets.get(i), end = nameOffsets.get(i+1);
+	    byte[] b = new byte[end-start];
+	    ByteBuffer d = nameBytes.duplicate();
+	    d.position(start);
+	    d.get(b);
+	    names[i] = new String(b, UTF8);
+	}
+	return names[i];
+    }
+
+    /** Writes the table into a binary snapshot file, which can be
+	read back with map() */
+    void save(File f) throws IOException {
+	int slotCnt = mask+1;
+	byte[][] nb = new byte[userCnt][];
+	int nameBytesLen = 0;
+	for(int i=0; i<userCnt; i++) {
+	    nb[i] = userName(i).getBytes(UTF8);
+	    nameBytesLen += nb[i].length;
+	}
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<20));
+	out.writeInt(MAGIC);
+	out.writeInt(userCnt);
+	out.writeInt(slotCnt);
+	out.writeInt(size);
+	out.writeInt(extra.size());
+	out.writeInt(nameBytesLen);
+	for(int j=0; j<slotCnt; j++) out.writeLong(keys.get(j));
+	for(int j=0; j<slotCnt; j++) out.writeInt(vals.get(j));
+	int offset = 0;
+	for(int i=0; i<userCnt; i++) {
+	    out.writeInt(offset);
+	    offset += nb[i].length;
+	}
+	out.writeInt(offset);
+	for(int i=0; i<userCnt; i++) out.write(nb[i]);
+	for(Map.Entry<String,Integer> e: extra.entrySet()) {
+	    out.writeInt(e.getValue());
+	    out.writeUTF(e.getKey());
+	}
+	out.close();
+    }
+
+    /** Memory-maps a snapshot file written by save() */
+    static CookieTable map(File f) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(f, "r");
+	FileChannel fc = raf.getChannel();
+	if (fc.size() > Integer.MAX_VALUE) throw new IOException("Cookie table file " + f + " is too large");
+	ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+	raf.close(); // the mapping remains valid
+	if (b.getInt(0) != MAGIC) throw new IOException("File " + f + " is not a cookie table file");
+
+	CookieTable t = new CookieTable();
+	t.userCnt = b.getInt(4);
+	int slotCnt = b.getInt(8);
+	t.size = b.getInt(12);
+	int extraCnt = b.getInt(16);
+	int nameBytesLen = b.getInt(20);
+	int pos = HEADER;
+	t.keys = slice(b, pos, 8*slotCnt).asLongBuffer();
+	pos += 8*slotCnt;
+	t.vals = slice(b, pos, 4*slotCnt).asIntBuffer();
+	pos += 4*slotCnt;
+	t.mask = slotCnt-1;
+	t.nameOffsets = slice(b, pos, 4*(t.userCnt+1)).asIntBuffer();
+	pos += 4*(t.userCnt+1);
+	t.nameBytes = slice(b, pos, nameBytesLen);
+	pos += nameBytesLen;
+	t.names = new String[t.userCnt];
+
+	// the cookies that could not be packed
+	byte[] tail = new byte[b.capacity()-pos];
+	slice(b, pos, tail.length).get(tail);
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(tail));
+	for(int i=0; i<extraCnt; i++) {
+	    int u = in.readInt();
+	    t.extra.put(in.readUTF(), u);
+	}
+	return t;
+    }
+
+    private static ByteBuffer slice(ByteBuffer b, int pos, int len) {
+	ByteBuffer d = b.duplicate();
+	d.position(pos);
+	d.limit(pos+len);
+	return d.slice();
+    }
+}
@@ -0,0 +1,194 @@
+package edu.rutgers.retro;
+
+import java.util.*;
+
+/** A cache of parts of users' histories, used by UserActionReader
+    during incremental coaccess computation, when the histories of the
+    same active users are requested again and again (each time, with
+    a few more actions). Each entry holds a contiguous range of one
+    user's actions, as primitive (aid, utc) arrays. Once a user's
+    entry has been loaded, UserActionReader.advance() appends to it
+    each new action of the user as the replay reaches it, so the
+    entry grows along with readCnt without further disk reads; the
+    "actions so far" are then returned as a Slice of the arrays,
+    without copying.
+
+    <p>The total size of the entries is kept within a memory budget by
+    evicting the least recently used entries.
+*/
+class HistoryCache {
+    /** A read-only view of the elements from through to-1 of a user's
+	(aid, utc) arrays. The arrays may be shared with a cache entry,
+	and should not be modified */
+    static class Slice {
+	final int[] aids, utcs;
+	final int from, to;
+	Slice(int[] _aids, int[] _utcs, int _from, int _to) {
+	    aids = _aids;
+	    utcs = _utcs;
+	    from = _from;
+	    to = _to;
+	}
+	/** Copies the actions from an array */
+	Slice(ActionDetails[] as) {
+	    this(new int[as.length], new int[as.length], 0, as.length);
+	    for(int k=0; k<as.length; k++) {
+		aids[k] = as[k].aid;
+		utcs[k] = as[k].utc;
+	    }
+	}
+	int size() {
+	    return to - from;
+	}
+    }
+
+    /** The actions No. k0 through k0+n-1 of one user */
+    static class Entry {
+	final int k0;
+	int n = 0;
+	int[] aids, utcs;
+	/** True as long as the utc values are in non-decreasing order */
+	boolean sorted = true;
+	Entry(int _k0, int capacity) {
+	    k0 = _k0;
+	    aids = new int[capacity];
+	    utcs = new int[capacity];
+	}
+	/** Approximate memory used, in bytes */
+	long bytes() {
+	    return 64 + 8L * aids.length;
+	}
+	/** Does the entry contain the actions No. k1 through k2-1? */
+	boolean covers(int k1, int k2) {
+	    return k0 <= k1 && k2 <= k0 + n;
+	}
+	void append(ActionDetails[] as) {
+	    if (n + as.length > aids.length) {
+		int cap = Math.max(2*aids.length, n + as.length);
+		aids = Arrays.copyOf(aids, cap);
+		utcs = Arrays.copyOf(utcs, cap);
+	    }
+	    for(ActionDetails a: as) append1(a.aid, a.utc);
+	}
+	void append(int aid, int utc) {
+	    if (n == aids.length) {
+		int cap = Math.max(2*aids.length, 16);
+		aids = Arrays.copyOf(aids, cap);
+		utcs = Arrays.copyOf(utcs, cap);
+	    }
+	    append1(aid, utc);
+	}
+	private void append1(int aid, int utc) {
+	    if (n>0 && utc < utcs[n-1]) sorted = false;
+	    aids[n] = aid;
+	    utcs[n] = utc;
+	    n++;
+	}
+	/** The actions No. k1 through k2-1, which must be covered */
+	Slice slice(int k1, int k2) {
+	    return new Slice(aids, utcs, k1-k0, k2-k0);
+	}
+	/** Those of the actions No. k1 through k2-1 (which must be
+	    covered) that come after the last one with utc &lt; startUtc.
+	    Uses binary search if the utc values are in order */
+	Slice recent(int k1, int k2, int startUtc) {
+	    int lo = k1-k0, hi = k2-k0;
+	    if (sorted) {
+		while(lo < hi) {
+		    int mid = (lo + hi) >>> 1;
+		    if (utcs[mid] < startUtc) lo = mid+1;
+		    else hi = mid;
+		}
+		return new Slice(aids, utcs, lo, k2-k0);
+	    } else {
+		int k = hi;
+		while(k>lo && utcs[k-1] >= startUtc) k--;
+		return new Slice(aids, utcs, k, k2-k0);
+	    }
+	}
+    }
+
+    /** In access order, i.e. the least recently used entry first */
+    private final LinkedHashMap<Integer, Entry> map = new LinkedHashMap<Integer, Entry>(1024, 0.75f, true);
+    /** Which users have an entry in the map; checked by append(), so
+	that the (boxing) map lookup is only done for those users */
+    private final boolean[] cached;
+    /** Memory budget, in bytes */
+    final long budget;
+    /** The memory used by all entries */
+    private long bytes = 0;
+    /** Requests fully served from the cache; requests served after
+	reading the actions not in the entry yet; requests for users with
+	no entry */
+    long hitCnt=0, extendCnt=0, missCnt=0;
+    long evictCnt=0;
+    /** The number of actions returned from the cache, and the number
+	of those that had to be read from disk */
+    long servedCnt=0, readCnt=0;
+
+    /** @param userCnt The number of users (all uids are below it) */
+    HistoryCache(long _budget, int userCnt) {
+	budget = _budget;
+	cached = new boolean[userCnt];
+    }
+
+    /** Looks up the entry for the user, marking it as recently used */
+    Entry get(int uid) {
+	return map.get(uid);
+    }
+
+    /** Creates the entry for the user, with the actions No. k0 and
+	on */
+    Entry put(int uid, int k0, ActionDetails[] as) {
+	readCnt += as.length;
+	Entry e = new Entry(k0, as.length);
+	e.append(as);
+	Entry old = map.put(uid, e);
+	cached[uid] = true;
+	if (old!=null) bytes -= old.bytes();
+	bytes += e.bytes();
+	evict();
+	return e;
+    }
+
+    /** Adds more actions to the end of the user's entry */
+    void extend(Entry e, ActionDetails[] as) {
+	readCnt += as.length;
+	bytes -= e.bytes();
+	e.append(as);
+	bytes += e.bytes();
+	evict();
+    }
+
+    /** Appends the user's action No. k to the user's entry, if there
+	is one and it ends right before action No. k */
+    void append(int uid, int k, int aid, int utc) {
+	if (!cached[uid]) return;
+	Entry e = map.get(uid);
+	if (e==null || e.k0 + e.n != k) return;
+	bytes -= e.bytes();
+	e.append(aid, utc);
+	bytes += e.bytes();
+	evict();
+    }
+
+    /** Removes the least recently used entries, until the cache is
+	within its budget. (The most recently used entry is kept, even
+	if it's larger than the budget, since it is about to be used) */
+    private void evict() {
+	Iterator<Map.Entry<Integer, Entry>> it = map.entrySet().iterator();
+	while(bytes > budget && map.size() > 1) {
+	    Map.Entry<Integer, Entry> me = it.next();
+	    bytes -= me.getValue().bytes();
+	    cached[me.getKey()] = false;
+	    it.remove();
+	    evictCnt++;
+	}
+    }
+
+    String report() {
+	return "History cache: " + hitCnt + " hits, " + extendCnt + " extensions, " + missCnt + " misses; " +
+	    readCnt + " of " + servedCnt + " actions read from disk; " + evictCnt +
+	    " evictions; " + map.size() + " users, " + (bytes>>10) + " KB (of " + (budget>>10) + " KB) in use";
+    }
+}
@@ -13,8 +13,10 @@ import org.json.*;
 
 class IPArxivUserInferrer extends ArxivUserInferrer 
 {
+    boolean usesCookie() { return false; }
+
     String inferUser(String ip_hash, String cookie_hash) {
-	fromIPCnt++;
+	counts().count(FROM_IP);
 	return ip_hash;
     }
 }
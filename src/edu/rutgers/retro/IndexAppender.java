@@ -0,0 +1,378 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+
+/** Adds the actions from new log files to an existing action index,
+    without rebuilding it from scratch. This is used by the
+    appendActions command of UserStats.
+
+    <p>The new users and articles are appended to the end of users.dat
+    and aid.dat (thus, aid.dat is no longer sorted after an append),
+    and the new actions, to the end of actions.dat. The user statistics
+    (including the content of the "too active user" history windows)
+    are carried over from the previous run in userState.dat, so that
+    the same actions are accepted as in a single run over all files.
+
+    <p>The pointers to the new actions are not inserted into the users'
+    sections of userHistory.dat, since that would require rewriting the
+    whole file. Instead, each append writes an overflow segment,
+    userHistory.N.dat, with its own index, userHistoryIndex.N.dat (N =
+    1, 2, ...), laid out in the same way as userHistory.dat. The merge
+    (the mergeActions command of UserStats), which can be run later,
+    folds all segments into userHistory.dat in one sequential pass.
+    Until then, UserActionReader serves each user's history as the
+    user's section of userHistory.dat followed by those of the
+    segments.
+
+    <p>The names of the log files that have been processed are kept in
+    logFiles.txt, so that each append only reads the files that are
+    not there yet.
+*/
+class IndexAppender extends UserActionSaver {
+
+    static File segmentFile(File indexDir, int k) {
+	return new File(indexDir, "userHistory." + k + ".dat");
+    }
+    static File segmentIndexFile(File indexDir, int k) {
+	return new File(indexDir, "userHistoryIndex." + k + ".dat");
+    }
+    /** Written by merge() once the merged files are complete; lists
+	the number of segments being merged */
+    static File mergeMarkerFile(File indexDir) {
+	return new File(indexDir, "userHistory.merge");
+    }
+    static File tmpFile(File f) {
+	return new File(f.getPath() + ".tmp");
+    }
+    static File logListFile(File indexDir) {
+	return new File(indexDir, "logFiles.txt");
+    }
+
+    /** The number of overflow segments. (The index file of a segment is
+	written last, so a segment without one is incomplete, and is
+	ignored). */
+    static int segmentCount(File indexDir) {
+	int k=0;
+	while(segmentIndexFile(indexDir, k+1).exists()) k++;
+	return k;
+    }
+
+    /** A history file (userHistory.dat or an overflow segment) and its
+	index */
+    static class HistorySection {
+	final File file;
+	/** The beginning of each user's section, plus the file length at the end */
+	final int[] offsets;
+	private ObjectRandomAccessFile raf = null;
+	HistorySection(File _file, File indexFile) throws IOException {
+	    file = _file;
+	    offsets = UserActionReader.readOffsets(indexFile, (int)(file.length() / (Integer.SIZE/8)));
+	}
+	/** The number of users covered; the later users have no actions here */
+	int userCnt() {
+	    return offsets.length-1;
+	}
+	int count(int uid) {
+	    return (uid < userCnt())? offsets[uid+1] - offsets[uid] : 0;
+	}
+	/** Reads the user's pointers into actions.dat */
+	int[] read(int uid) throws IOException {
+	    int n = count(uid);
+	    if (n==0) return new int[0];
+	    return raf().readInts(offsets[uid], n);
+	}
+	/** Reads the user's pointers No. k through k+n-1 into dst[off...] */
+	void readInts(int uid, int k, int[] dst, int off, int n) throws IOException {
+	    if (k<0 || k+n > count(uid)) throw new IllegalArgumentException("User " + uid + " has only " + count(uid) + " actions in " + file);
+	    raf().readInts(offsets[uid] + k, dst, off, n);
+	}
+	private synchronized ObjectRandomAccessFile raf() throws IOException {
+	    if (raf==null) raf = new ObjectRandomAccessFile(file, "r", Integer.SIZE/8);
+	    return raf;
+	}
+	synchronized void close() throws IOException {
+	    if (raf!=null) raf.close();
+	    raf = null;
+	}
+    }
+
+    final File indexDir;
+    /** The number of the segment being written */
+    final int segNo;
+    /** userHistory.dat and the earlier segments */
+    private final Vector<HistorySection> earlier = new Vector<HistorySection>();
+    /** The actions that were in actions.dat before this append */
+    private final ActionStore oldActions;
+
+    /** An UserEntry that also knows about the user's actions recorded
+	in the earlier runs, so that repeated views of the same article
+	are discarded in the same way as in a single run */
+    class AppendEntry extends UserEntry {
+	final int uid;
+	AppendEntry(int _uid, int _total, int _offset, boolean _willReject) {
+	    super(_total, _offset, _willReject);
+	    uid = _uid;
+	}
+	void readMyPages() throws IOException {
+	    super.readMyPages();
+	    for(HistorySection h: earlier) {
+		for(int actionID: h.read(uid)) myPages.add(oldActions.aid(actionID));
+	    }
+	}
+    }
+
+    /** @param allUsers The user statistics, updated with the new log files
+	@param prevAcceptCnt The users' UserInfo.acceptCnt values before
+	the new log files have been read; the users beyond the end of
+	the array are new
+     */
+    IndexAppender(ArxivUserInferrer _inferrer, NameTable _userNameTable,
+		  NameTable _aidNameTable,
+		  HashMap<String, UserStats.UserInfo> allUsers,
+		  int[] prevAcceptCnt, File _indexDir) throws IOException {
+	super(_userNameTable, _aidNameTable);
+	inferrer = _inferrer;
+	indexDir = _indexDir;
+	earlier.add(new HistorySection(new File(indexDir, "userHistory.dat"), new File(indexDir, "userHistoryIndex.dat")));
+	int segCnt = segmentCount(indexDir);
+	for(int k=1; k<=segCnt; k++) {
+	    earlier.add(new HistorySection(segmentFile(indexDir, k), segmentIndexFile(indexDir, k)));
+	}
+	segNo = segCnt + 1;
+	oldActions = new MappedActionStore(new File(indexDir, "actions.dat"));
+
+	if (userNameTable.size() !=  allUsers.size()) throw new IllegalArgumentException("Table size mismatch");
+	users = new UserEntry[allUsers.size()];
+	int offset = 0;
+	for(int i=0; i<users.length; i++) {
+	    UserStats.UserInfo us = allUsers.get(userNameTable.nameAt(i));
+	    int prev = (i < prevAcceptCnt.length)? prevAcceptCnt[i] : 0;
+	    users[i] = new AppendEntry(i, us.acceptCnt - prev, offset, us.excludeFromNowOn);
+	    offset += users[i].total;
+	}
+	System.out.println("Predicted length of the (uncompacted) overflow segment No. " + segNo + " = " + offset);
+    }
+
+    /** New actions are appended to actions.dat; the pointers to them
+	go into a new overflow segment */
+    void openFiles(File outdir, String mode) throws IOException {
+	actionRAF=new RAF<ActionDetails>(new File(outdir, "actions.dat"),mode, new ActionDetails());
+	historyFile = segmentFile(outdir, segNo);
+	userHistoryRAF=new ObjectRandomAccessFile(historyFile,mode, Integer.SIZE/8);
+    }
+
+    void closeFiles() throws IOException {
+	for(HistorySection h: earlier) h.close();
+	super.closeFiles();
+    }
+
+    File historyIndexFile(File outdir) {
+	return segmentIndexFile(outdir, segNo);
+    }
+
+    /** Checks that the directory contains an index to which actions can
+	be appended (after completing an interrupted merge, if any) */
+    static void checkAppendable(File indexDir) throws IOException {
+	finishMerge(indexDir);
+	if (!new File(indexDir, "actions.dat").exists() && SegmentedActionStore.listFile(indexDir).exists()) {
+	    throw new IOException("Cannot append to the index in " + indexDir + ", because its actions.dat has been removed after splitting it into segments (see SegmentedActionStore)");
+	}
+	String[] needed = {"users.dat", "aid.dat", "userState.dat", "actions.dat", "userHistory.dat", "userHistoryIndex.dat"};
+	for(String name: needed) {
+	    File f = new File(indexDir, name);
+	    if (!f.exists()) throw new IOException("Cannot append to the index in " + indexDir + ", because there is no " + f + ". (Indexes built by older versions of UserStats need to be rebuilt with the userActions command)");
+	}
+    }
+
+    /** Removes the files derived from the action index (see
+	ColumnarActionStore, ClusteredHistory, AidIndex, TimeIndex,
+	SegmentedActionStore), since they won't reflect the appended
+	(or, on a full rebuild, the new) actions. (The .dict files are
+	rewritten by UserStats). */
+    static void removeDerivedFiles(File indexDir) throws IOException {
+	Vector<File> v = new Vector<File>();
+	v.add(ColumnarActionStore.blocksFile(indexDir));
+	for(String col: ColumnarActionStore.COLUMNS) v.add(ColumnarActionStore.columnFile(indexDir, col));
+	v.add(ClusteredHistory.file(indexDir));
+	v.add(AidIndex.indexFile(indexDir));
+	v.add(AidIndex.postingsFile(indexDir));
+	v.add(TimeIndex.file(indexDir));
+	if (SegmentedActionStore.listFile(indexDir).exists()) {
+	    LineNumberReader r = new LineNumberReader(new FileReader(SegmentedActionStore.listFile(indexDir)));
+	    String s;
+	    while((s=r.readLine())!=null) {
+		s = s.trim();
+		if (!s.equals("")) v.add(new File(indexDir, s.split("\\s+")[0]));
+	    }
+	    r.close();
+	    v.add(SegmentedActionStore.listFile(indexDir));
+	}
+	for(File f: v) {
+	    if (!f.exists()) continue;
+	    if (!f.delete()) throw new IOException("Failed to delete " + f);
+	    System.out.println("Deleted " + f + ", which would be out of date after the update");
+	}
+    }
+
+    /** Selects the log files whose names are not listed in logFiles.txt */
+    static File[] newLogFiles(File indexDir, File[] files) throws IOException {
+	HashSet<String> done = new HashSet<String>();
+	File f = logListFile(indexDir);
+	if (f.exists()) {
+	    LineNumberReader r = new LineNumberReader(new FileReader(f));
+	    String s;
+	    while((s=r.readLine())!=null) done.add(s.trim());
+	    r.close();
+	}
+	Vector<File> v = new Vector<File>();
+	for(File x: files) {
+	    if (!done.contains(x.getName())) v.add(x);
+	}
+	return v.toArray(new File[0]);
+    }
+
+    /** Adds the names of the log files to logFiles.txt
+	@param append If false, the file is overwritten
+     */
+    static void recordLogFiles(File indexDir, File[] files, boolean append) throws IOException {
+	PrintWriter w = new PrintWriter(new FileWriter(logListFile(indexDir), append));
+	for(File x: files) w.println(x.getName());
+	w.close();
+    }
+
+    /** Appends the names No. from and above to a file written by
+	NameTable.save() */
+    static void appendNames(NameTable table, int from, File f) throws IOException {
+	PrintWriter w = new PrintWriter(new FileWriter(f, true));
+	for(int i=from; i<table.size(); i++) w.println(table.nameAt(i));
+	w.close();
+    }
+
+    /** Folds all overflow segments into userHistory.dat. Each user's
+	new section consists of the user's section of userHistory.dat,
+	followed by those of the segments, in order; since all files
+	have the users' sections in the same order, this is done by
+	reading each file sequentially, and writing the new history
+	file and index in one forward pass.
+
+	<p>The merge can be interrupted at any point without losing or
+	duplicating any pointers. The new files are written as .tmp
+	files, and synced; then the merge marker (userHistory.merge),
+	with the number of segments merged, is atomically put in place.
+	Until then, the old files are untouched, and a rerun starts
+	over; after that, finishMerge() (which is also called by the
+	next merge, append or UserActionReader) completes the job.
+     */
+    static void merge(File indexDir) throws IOException {
+	finishMerge(indexDir);
+	int segCnt = segmentCount(indexDir);
+	if (segCnt==0) {
+	    System.out.println("There are no overflow segments to merge in " + indexDir);
+	    return;
+	}
+	long t0 = System.currentTimeMillis();
+	File historyFile = new File(indexDir, "userHistory.dat");
+	File historyIndexFile = new File(indexDir, "userHistoryIndex.dat");
+	HistorySection[] h = new HistorySection[segCnt+1];
+	h[0] = new HistorySection(historyFile, historyIndexFile);
+	for(int k=1; k<=segCnt; k++) {
+	    h[k] = new HistorySection(segmentFile(indexDir, k), segmentIndexFile(indexDir, k));
+	}
+	int userCnt = 0;
+	DataInputStream[] in = new DataInputStream[h.length];
+	for(int j=0; j<h.length; j++) {
+	    userCnt = Math.max(userCnt, h[j].userCnt());
+	    in[j] = new DataInputStream(new BufferedInputStream(new FileInputStream(h[j].file), COMPACT_BUFFER));
+	}
+	FileOutputStream fout = new FileOutputStream(tmpFile(historyFile));
+	FileOutputStream ifout = new FileOutputStream(tmpFile(historyIndexFile));
+	BufferedOutputStream out = new BufferedOutputStream(fout, COMPACT_BUFFER);
+	DataOutputStream iout = new DataOutputStream(new BufferedOutputStream(ifout, 1<<20));
+	final int sizeof = Integer.SIZE/8;
+	byte[] buf = new byte[1<<16];
+	long offset = 0;
+	for(int uid=0; uid<userCnt; uid++) {
+	    iout.writeInt((int)offset);
+	    for(int j=0; j<h.length; j++) {
+		long len = (long)h[j].count(uid) * sizeof;
+		offset += h[j].count(uid);
+		while(len > 0) {
+		    int n = (int)Math.min(len, buf.length);
+		    in[j].readFully(buf, 0, n);
+		    out.write(buf, 0, n);
+		    len -= n;
+		}
+	    }
+	}
+	for(DataInputStream x: in) x.close();
+	for(HistorySection x: h) x.close();
+	out.flush();
+	fout.getFD().sync();
+	out.close();
+	iout.flush();
+	ifout.getFD().sync();
+	iout.close();
+	// the commit point
+	File marker = mergeMarkerFile(indexDir);
+	FileOutputStream mout = new FileOutputStream(tmpFile(marker));
+	mout.write(("" + segCnt + "\n").getBytes());
+	mout.getFD().sync();
+	mout.close();
+	Files.move(tmpFile(marker).toPath(), marker.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	finishMerge(indexDir);
+	double sec = Math.max(1, System.currentTimeMillis() - t0) * 0.001;
+	System.out.println("Merged " + segCnt + " overflow segment(s) into " + historyFile + ": " + userCnt + " users, " + offset + " actions, in " + sec + " sec");
+    }
+
+    /** Completes a merge that has been interrupted after its commit
+	point (see merge()): moves the merged files in place, if they
+	haven't been yet, and deletes the merged segments (the index
+	files first, since they are what segmentCount() looks for) and
+	the marker. Each step can be repeated, so this can be
+	interrupted too. Does nothing if there is no merge marker.
+     */
+    static void finishMerge(File indexDir) throws IOException {
+	File marker = mergeMarkerFile(indexDir);
+	int segCnt;
+	try {
+	    segCnt = Integer.parseInt(new String(Files.readAllBytes(marker.toPath())).trim());
+	} catch(NoSuchFileException ex) {
+	    return;
+	}
+	File historyFile = new File(indexDir, "userHistory.dat");
+	File historyIndexFile = new File(indexDir, "userHistoryIndex.dat");
+	for(File f: new File[] {historyFile, historyIndexFile}) {
+	    try {
+		Files.move(tmpFile(f).toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	    } catch(NoSuchFileException ex) {
+		// already moved
+	    }
+	}
+	for(int k=1; k<=segCnt; k++) Files.deleteIfExists(segmentIndexFile(indexDir, k).toPath());
+	for(int k=1; k<=segCnt; k++) Files.deleteIfExists(segmentFile(indexDir, k).toPath());
+	Files.deleteIfExists(marker.toPath());
+    }
+
+    /** Removes the overflow segments, and the files of an unfinished
+	merge. This is done before a full rebuild, which replaces
+	userHistory.dat, so that the old segments won't be served
+	(or merged) with the new file. */
+    static void removeSegments(File indexDir) throws IOException {
+	Vector<File> v = new Vector<File>();
+	for(int k=1; segmentIndexFile(indexDir, k).exists() || segmentFile(indexDir, k).exists(); k++) {
+	    v.add(segmentIndexFile(indexDir, k));
+	    v.add(segmentFile(indexDir, k));
+	}
+	v.add(mergeMarkerFile(indexDir));
+	v.add(tmpFile(mergeMarkerFile(indexDir)));
+	v.add(tmpFile(new File(indexDir, "userHistory.dat")));
+	v.add(tmpFile(new File(indexDir, "userHistoryIndex.dat")));
+	for(File f: v) {
+	    if (!f.exists()) continue;
+	    if (!f.delete()) throw new IOException("Failed to delete " + f);
+	    System.out.println("Deleted " + f + ", which would be out of date after the rebuild");
+	}
+    }
+}
@@ -0,0 +1,72 @@
+package edu.rutgers.retro;
+
+import java.util.*;
+
+/** A set of non-negative ints, stored in an open-addressing int
+    array. Unlike HashSet&lt;Integer&gt;, it does not create an object
+    for every element, so that a great many of these sets (e.g. one
+    per user) can be kept in memory at the same time.
+*/
+class IntSet {
+    private static final int EMPTY = -1;
+    /** Open addressing table; EMPTY marks empty slots */
+    private int[] slots;
+    private int size = 0;
+
+    IntSet() {
+	this(4);
+    }
+
+    /** @param expected How many elements the set is expected to have */
+    IntSet(int expected) {
+	int n = 4;
+	while(n < 2*expected) n *= 2;
+	slots = new int[n];
+	Arrays.fill(slots, EMPTY);
+    }
+
+    int size() { return size; }
+
+    private static int hash(int x) {
+	x *= 0x9E3779B9;
+	return x ^ (x>>>16);
+    }
+
+    boolean contains(int x) {
+	int mask = slots.length-1;
+	for(int j=hash(x) & mask; ; j=(j+1) & mask) {
+	    if (slots[j]==x) return true;
+	    if (slots[j]==EMPTY) return false;
+	}
+    }
+
+    /** Adds an element to the set.
+	@return true if the element was not in the set before
+     */
+    boolean add(int x) {
+	if (x<0) throw new IllegalArgumentException("Negative values can't be stored in an IntSet");
+	int mask = slots.length-1;
+	int j=hash(x) & mask;
+	for(; slots[j]!=EMPTY; j=(j+1) & mask) {
+	    if (slots[j]==x) return false;
+	}
+	slots[j] = x;
+	size++;
+	if (2*size > slots.length) rehash();
+	return true;
+    }
+
+    /** Doubles the size of the table */
+    private void rehash() {
+	int[] old = slots;
+	slots = new int[2*old.length];
+	Arrays.fill(slots, EMPTY);
+	int mask = slots.length-1;
+	for(int x: old) {
+	    if (x==EMPTY) continue;
+	    int j=hash(x) & mask;
+	    while(slots[j]!=EMPTY) j=(j+1) & mask;
+	    slots[j] = x;
+	}
+    }
+}
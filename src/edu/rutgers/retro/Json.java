@@ -60,15 +60,26 @@ public class Json {
     }
 
     public static JSONObject readJsonFile(File f) throws IOException, JSONException {
-	Reader fr = f.getName().endsWith(".gz") ?
-	    new InputStreamReader(new GZIPInputStream(new FileInputStream(f))) :
-	    new FileReader(f);
+	Reader fr = openLogReader(f);
 	JSONTokener tok = new JSONTokener(fr);
 	JSONObject jsoOuter = new JSONObject(tok);
 	fr.close();
 	return jsoOuter;
     }
 
+    /** Opens a (possibly gzipped) JSON file for reading */
+    static Reader openLogReader(File f) throws IOException {
+	return new InputStreamReader(openLogStream(f));
+    }
+
+    /** Opens a (possibly gzipped) file for reading, returning a stream
+	of uncompressed bytes */
+    static InputStream openLogStream(File f) throws IOException {
+	return f.getName().endsWith(".gz") ?
+	    new GZIPInputStream(new FileInputStream(f), 1<<16) :
+	    new FileInputStream(f);
+    }
+
 
 
     /** Do we process JSON records with this particular action type?
@@ -115,16 +126,13 @@ public class Json {
      */
     static void splitJsonFile(String fname) throws IOException, JSONException {
 
-	JSONObject jsoOuter = Json.readJsonFile(fname);
-	JSONArray jsa = jsoOuter.getJSONArray("entries");
-	int len = jsa.length();
-	System.out.println("Length of the JSON data array = " + len);
+	JsonEntryIterator it = new JsonEntryIterator(new InputStreamReader(LogPrefetcher.openOne(new File(fname))));
 
 	DataSaver saver = new DataSaver(fname);
 
 	int cnt=0, ignorableActionCnt=0, invalidAidCnt = 0, unexpectedActionCnt=0;
-	for(int i=0; i< len; i++) {
-	    JSONObject jso = jsa.getJSONObject(i);
+	while(it.hasNext()) {
+	    JSONObject jso = it.next();
 	    String type =  jso.getString( "type");
 	    if (!typeIsAcceptable(type)) {
 		ignorableActionCnt++;
@@ -143,7 +151,9 @@ public class Json {
 	  
 	    saver.save( ip_hash, cookie, aid);
 	}
+	it.close();
 	saver.closeAll();
+	System.out.println("Length of the JSON data array = " + it.count());
 	
 	System.out.println("Analyzable action entries count = " + cnt);
 	System.out.println("Ignorable  action entries count = " + ignorableActionCnt);
@@ -199,9 +209,7 @@ public class Json {
 				    File outfile) throws IOException, JSONException {
 
 
-	JSONObject jsoOuter = Json.readJsonFile(fname);
-	JSONArray jsa = jsoOuter.getJSONArray("entries");
- 	int len = jsa.length();
+	JsonEntryIterator it = new JsonEntryIterator(new InputStreamReader(LogPrefetcher.openOne(new File(fname))));
 
 
 	File d= outfile.getParentFile();
@@ -213,8 +221,8 @@ public class Json {
 
 	int cnt=0, ignorableActionCnt=0, unexpectedActionCnt=0;
 
- 	for(int i=0; i< len; i++) {
-	    JSONObject jso = jsa.getJSONObject(i);
+	while(it.hasNext()) {
+	    JSONObject jso = it.next();
 	    String type =  jso.getString( "type");
 	    if (!typeIsAcceptable(type)) {
 		ignorableActionCnt++;
@@ -240,6 +248,7 @@ public class Json {
 	    boolean down = typeIsDownload(type);
 	    w.println(user + " " + aid + " " + utc + " " + (down?1:0));
 	}
+	it.close();
 	w.flush();
 	w.close();
     }
@@ -261,9 +270,7 @@ public class Json {
 			File outfile) throws IOException, JSONException {
 
 
-	JSONObject jsoOuter = Json.readJsonFile(fname);
-	JSONArray jsa = jsoOuter.getJSONArray("entries");
-	int len = jsa.length();
+	JsonEntryIterator it = new JsonEntryIterator(new InputStreamReader(LogPrefetcher.openOne(new File(fname))));
 
 
 	File d= outfile.getParentFile();
@@ -275,8 +282,8 @@ public class Json {
 
 	int cnt=0, ignorableActionCnt=0, unexpectedActionCnt=0;
 
-	for(int i=0; i< len; i++) {
-		JSONObject jso = jsa.getJSONObject(i);
+	while(it.hasNext()) {
+		JSONObject jso = it.next();
 		String type =  jso.getString( "type");
 		if (!typeIsAcceptable(type)) {
 			ignorableActionCnt++;
@@ -316,6 +323,7 @@ public class Json {
 		boolean down = typeIsDownload(type);
 		w.println(user + " " + aid + " " + utc + " " + (down?1:0) + " " + referrer);
 	}
+	it.close();
 	w.flush();
 	w.close();
 	System.out.println("Number of events kept:" + cnt); 
@@ -0,0 +1,119 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+
+import org.json.*;
+
+/** A streaming reader for the "entries" array of a usage log file.
+    Unlike Json.readJsonFile(), which builds the JSONObject tree for
+    the entire file (with all of its possibly millions of entries)
+    before any of them can be used, this iterator pulls one log entry
+    at a time from the JSONTokener, so the memory footprint does not
+    depend on the size of the file.
+
+    <p>The log file is expected to look like this:
+    <pre>
+    { ..., "entries": [ {...}, {...}, ... ], ... }
+    </pre>
+    Any top-level fields other than "entries" are read and ignored.
+
+    <p>Sample usage:
+    <pre>
+    JsonEntryIterator it = new JsonEntryIterator(f);
+    while(it.hasNext()) {
+	JSONObject jso = it.next();
+	...
+    }
+    it.close();
+    </pre>
+*/
+class JsonEntryIterator implements Iterator<JSONObject>, Closeable {
+
+    private final Reader fr;
+    private final JSONTokener tok;
+    /** The entry that will be returned by the next call to next() */
+    private JSONObject nextEntry = null;
+    /** Set once we have reached the end of the "entries" array */
+    private boolean done = false;
+    /** Have we already read the first element of the array? */
+    private boolean started = false;
+    /** How many entries have been returned so far */
+    private int cnt = 0;
+
+    JsonEntryIterator(File f) throws IOException, JSONException {
+	this(Json.openLogReader(f));
+    }
+
+    /** @param _fr Reads a JSON log file from the beginning. It will be
+	closed by this.close().
+     */
+    JsonEntryIterator(Reader _fr) throws JSONException {
+	fr = _fr;
+	tok = new JSONTokener(fr);
+	if (!seekEntries()) done = true;
+    }
+
+    /** Reads the top-level object until the beginning of the "entries"
+	array is reached, skipping all other fields.
+	@return true if the array has been found
+     */
+    private boolean seekEntries() throws JSONException {
+	if (tok.nextClean() != '{') {
+	    throw tok.syntaxError("A JSONObject text must begin with '{'");
+	}
+	while(true) {
+	    char c = tok.nextClean();
+	    if (c == 0) throw tok.syntaxError("A JSONObject text must end with '}'");
+	    if (c == '}') return false;
+	    if (c == ',') continue;
+	    tok.back();
+	    String key = tok.nextValue().toString();
+	    if (tok.nextClean() != ':') throw tok.syntaxError("Expected a ':' after a key");
+	    if (key.equals("entries")) {
+		if (tok.nextClean() != '[') throw tok.syntaxError("The entries field must be a JSONArray");
+		return true;
+	    }
+	    tok.nextValue(); // some other field; ignore it
+	}
+    }
+
+    /** Reads the next element of the array, if there is one, into nextEntry */
+    private void advance() throws JSONException {
+	char c = tok.nextClean();
+	if (started) {
+	    if (c == ']') { done = true; return; }
+	    if (c != ',') throw tok.syntaxError("Expected a ',' or ']'");
+	    c = tok.nextClean();
+	}
+	started = true;
+	if (c == ']') { done = true; return; }
+	tok.back();
+	nextEntry = new JSONObject(tok);
+    }
+
+    public boolean hasNext() {
+	if (nextEntry==null && !done) advance();
+	return nextEntry != null;
+    }
+
+    public JSONObject next() throws NoSuchElementException {
+	if (!hasNext()) throw new NoSuchElementException();
+	JSONObject jso = nextEntry;
+	nextEntry = null;
+	cnt++;
+	return jso;
+    }
+
+    public void remove() {
+	throw new UnsupportedOperationException();
+    }
+
+    /** @return The number of entries returned so far */
+    int count() { return cnt; }
+
+    public void close() throws IOException {
+	fr.close();
+    }
+
+}
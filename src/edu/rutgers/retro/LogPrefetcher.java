@@ -0,0 +1,185 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A read-ahead stage for reading a sequence of (possibly gzipped)
+    log files. While the caller is parsing file k, background threads
+    read and decompress files k+1, ..., k+depth, so that disk (or NFS)
+    latency and gunzip time are overlapped with parsing. Each file's
+    uncompressed bytes are passed to the caller through a bounded
+    queue of chunks, so that no more than QUEUE_CHUNKS*CHUNK_SIZE
+    bytes per file are held in memory.
+
+    <p>Sample usage:
+    <pre>
+    LogPrefetcher pf = new LogPrefetcher(files);
+    try {
+	for(int k=0; k&lt;files.length; k++) {
+	    InputStream in = pf.open(k);
+	    ... // read and close in
+	}
+    } finally {
+	pf.close();
+    }
+    </pre>
+*/
+class LogPrefetcher implements Closeable {
+
+    /** How many files ahead of the current one are read in the
+	background. With 0, files are read on the caller's thread,
+	just as with Json.openLogStream() */
+    static int depth = 2;
+
+    static final int CHUNK_SIZE = 1<<20;
+    /** Max number of chunks buffered for each file */
+    static final int QUEUE_CHUNKS = 16;
+
+    private final File[] files;
+    private final ChunkStream[] streams;
+    /** The files with numbers below this have been started */
+    private int started = 0;
+
+    LogPrefetcher(File[] _files) {
+	files = _files;
+	streams = new ChunkStream[files.length];
+    }
+
+    /** Opens the k-th file, and starts reading ahead the next few
+	files. Each file can only be opened once.
+	@return A stream of uncompressed bytes of the file, to be closed by the caller
+     */
+    InputStream open(int k) throws IOException {
+	if (depth<=0) return Json.openLogStream(files[k]);
+	while(started < files.length && started <= k + depth) {
+	    streams[started] = new ChunkStream(files[started]);
+	    started++;
+	}
+	ChunkStream s = streams[k];
+	if (s==null) throw new IllegalStateException("File No. " + k + " has already been opened");
+	streams[k] = null;
+	return s;
+    }
+
+    /** Opens a single file, which will be read and decompressed on a
+	background thread while the caller parses it (unless depth is 0)
+     */
+    static InputStream openOne(File f) throws IOException {
+	return (depth<=0)? Json.openLogStream(f) : new ChunkStream(f);
+    }
+
+    /** Stops any reading still in progress for the files that have
+	been started but not opened */
+    public void close() {
+	for(int k=0; k<streams.length; k++) {
+	    if (streams[k]!=null) streams[k].close();
+	    streams[k] = null;
+	}
+    }
+
+    /** Reads a file on its own background thread, and delivers its
+	uncompressed content via a bounded queue
+     */
+    private static class ChunkStream extends InputStream {
+	/** Put in the queue after the last chunk */
+	private static final byte[] END = new byte[0];
+	private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_CHUNKS);
+	private volatile boolean closed = false;
+	/** Set by the reading thread if it fails (with any exception or
+	    error, which is then rethrown to the consumer) */
+	private volatile Throwable error = null;
+	private byte[] chunk = null;
+	private int pos = 0, lim = 0;
+	private boolean eof = false;
+
+	ChunkStream(final File f) {
+	    Thread t = new Thread("Read-ahead " + f.getName()) {
+		    public void run() {
+			try {
+			    InputStream in = Json.openLogStream(f);
+			    try {
+				fill(in);
+			    } finally {
+				in.close();
+			    }
+			} catch(InterruptedException ex) {
+			    error = new InterruptedIOException("Reading of " + f + " interrupted");
+			} catch(Throwable ex) {
+			    error = ex;
+			} finally {
+			    // the consumer waits for END, whatever happens
+			    try {
+				put(END);
+			    } catch(InterruptedException ex) {}
+			}
+		    }
+		};
+	    t.setDaemon(true);
+	    t.start();
+	}
+
+	/** Runs on the reading thread */
+	private void fill(InputStream in) throws IOException, InterruptedException {
+	    while(!closed) {
+		byte[] b = new byte[CHUNK_SIZE];
+		int n = 0, m;
+		while(n < b.length && (m = in.read(b, n, b.length-n)) > 0) n += m;
+		if (n==0) return;
+		put(n==b.length? b : Arrays.copyOf(b, n));
+		if (n < b.length) return;
+	    }
+	}
+
+	/** Waits for space in the queue, unless the consumer has gone */
+	private void put(byte[] b) throws InterruptedException {
+	    while(!closed && !queue.offer(b, 100, TimeUnit.MILLISECONDS)) {}
+	}
+
+	/** Makes the next chunk current.
+	    @return false at the end of the file */
+	private boolean nextChunk() throws IOException {
+	    if (eof) return false;
+	    try {
+		chunk = queue.take();
+	    } catch(InterruptedException ex) {
+		throw new InterruptedIOException();
+	    }
+	    if (chunk==END) {
+		eof = true;
+		Throwable e = error;
+		if (e==null) return false;
+		if (e instanceof IOException) throw (IOException)e;
+		if (e instanceof RuntimeException) throw (RuntimeException)e;
+		if (e instanceof Error) throw (Error)e;
+		throw new IOException(e);
+	    }
+	    pos = 0;
+	    lim = chunk.length;
+	    return true;
+	}
+
+	public int read() throws IOException {
+	    if (pos==lim && !nextChunk()) return -1;
+	    return chunk[pos++] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+	    if (len==0) return 0;
+	    if (pos==lim && !nextChunk()) return -1;
+	    int n = Math.min(len, lim-pos);
+	    System.arraycopy(chunk, pos, b, off, n);
+	    pos += n;
+	    return n;
+	}
+
+	public int available() {
+	    return lim-pos;
+	}
+
+	public void close() {
+	    closed = true;
+	    queue.clear();
+	}
+    }
+}
@@ -133,6 +133,7 @@ public class Main {
     public static void main(String [] argv) throws IOException, java.text.ParseException, JSONException {
 
 	ht = new ParseConfig();
+	LogPrefetcher.depth = ht.getOption("prefetch", LogPrefetcher.depth);
 
 	final String tcPath = ht.getOption("tc", "/data/json/usage/tc.json.gz");
 	final boolean useCookies=true;
@@ -0,0 +1,77 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/** An ActionStore that memory-maps actions.dat. Since a single
+    MappedByteBuffer can't be larger than 2 GB, the file is mapped as
+    a sequence of segments. The segment size is a multiple of the
+    record size, so that no record is split between two segments.
+    Reading an action is then just three absolute getInt() calls, with
+    no system calls involved.
+*/
+class MappedActionStore implements ActionStore {
+    /** Size of one action record, in bytes */
+    static final int SIZEOF = 3*(Integer.SIZE/8);
+    /** Number of records per segment (except for the last one) */
+    static final int SEGMENT_RECORDS = 1<<26;
+    static final long SEGMENT_BYTES = (long)SEGMENT_RECORDS * SIZEOF;
+
+    private final MappedByteBuffer[] segments;
+    private final long n;
+
+    MappedActionStore(File f) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(f, "r");
+	FileChannel fc = raf.getChannel();
+	long len = fc.size();
+	if (len % SIZEOF != 0) throw new IllegalArgumentException("File size is not a multiple of object size (" + SIZEOF +")");
+	n = len / SIZEOF;
+	int segCnt = (int)((len + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+	segments = new MappedByteBuffer[segCnt];
+	for(int i=0; i<segCnt; i++) {
+	    long start = i * SEGMENT_BYTES;
+	    segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_BYTES, len-start));
+	}
+	raf.close(); // the mappings remain valid
+    }
+
+    public long lengthObject() { return n; }
+
+    /** The byte offset of the record within its segment */
+    private static int offset(long pos) {
+	return (int)(pos % SEGMENT_RECORDS) * SIZEOF;
+    }
+
+    private ByteBuffer segment(long pos) {
+	return segments[(int)(pos / SEGMENT_RECORDS)];
+    }
+
+    public ActionDetails read(ActionDetails blank, long pos) {
+	ByteBuffer b = segment(pos);
+	int k = offset(pos);
+	blank.uid = b.getInt(k);
+	blank.aid = b.getInt(k+4);
+	blank.utc = b.getInt(k+8);
+	return blank;
+    }
+
+    public void readMany(int[] pos, int off, int n, ActionDetails[] blanks) {
+	for(int k=0; k<n; k++) read(blanks[k], pos[off+k]);
+    }
+
+    public int uid(long pos) {
+	return segment(pos).getInt(offset(pos));
+    }
+
+    public int aid(long pos) {
+	return segment(pos).getInt(offset(pos)+4);
+    }
+
+    public int utc(long pos) {
+	return segment(pos).getInt(offset(pos)+8);
+    }
+
+    /** The mappings are released when this object is garbage-collected */
+    public void close() {}
+}
@@ -0,0 +1,252 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+
+/** A read-only NameTable that is memory-mapped from a binary
+    dictionary file (e.g. users.dict or aid.dict, created from
+    users.dat and aid.dat). Unlike the text-based NameTable, it does
+    not need to read and hash all names at startup, and does not keep
+    them on the heap: nameAt() and get() work directly with the mapped
+    file.
+
+    <p>The file layout is as follows (all numbers big-endian):
+    <pre>
+    int MAGIC, int size, int sorted (1 or 0), int slotCnt
+    int[size+1]  offsets of the names in the name area
+    int[slotCnt] hash index: name IDs, or -1 for empty slots (slotCnt=0 if sorted)
+    byte[]       the names, UTF-8
+    </pre>
+    If the names are in sorted order (which is the case for aid.dat),
+    get() uses binary search; otherwise, the open-addressing hash index.
+*/
+class MappedNameTable extends NameTable {
+    private static final long serialVersionUID = 1L;
+    static final int MAGIC = 0x4E544231; // "NTB1"
+    static final int HEADER = 4 * 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int n;
+    private final boolean sorted;
+    private final IntBuffer offsets, slots;
+    private final int mask;
+    private final ByteBuffer bytes;
+
+    private MappedNameTable(File f) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(f, "r");
+	FileChannel fc = raf.getChannel();
+	if (fc.size() > Integer.MAX_VALUE) throw new IOException("Dictionary file " + f + " is too large");
+	ByteBuffer b = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+	raf.close(); // the mapping remains valid
+	if (b.getInt(0) != MAGIC) throw new IOException("File " + f + " is not a dictionary file");
+	n = b.getInt(4);
+	sorted = (b.getInt(8) != 0);
+	int slotCnt = b.getInt(12);
+	int pos = HEADER;
+	offsets = slice(b, pos, 4*(n+1)).asIntBuffer();
+	pos += 4*(n+1);
+	slots = slice(b, pos, 4*slotCnt).asIntBuffer();
+	pos += 4*slotCnt;
+	mask = slotCnt-1;
+	bytes = slice(b, pos, b.capacity()-pos);
+    }
+
+    private static ByteBuffer slice(ByteBuffer b, int pos, int len) {
+	ByteBuffer d = b.duplicate();
+	d.position(pos);
+	d.limit(pos+len);
+	return d.slice();
+    }
+
+    public int size() { return n; }
+
+    public boolean isEmpty() { return n==0; }
+
+    String nameAt(int i) {
+	if (i<0 || i>=n) throw new ArrayIndexOutOfBoundsException(i);
+	int start = offsets.get(i), end = offsets.get(i+1);
+	byte[] b = new byte[end-start];
+	for(int k=0; k<b.length; k++) b[k] = bytes.get(start+k);
+	return new String(b, UTF8);
+    }
+
+    /** Does the i-th name consist of exactly these bytes? */
+    private boolean nameEquals(int i, byte[] key) {
+	int start = offsets.get(i), end = offsets.get(i+1);
+	if (end-start != key.length) return false;
+	for(int k=0; k<key.length; k++) {
+	    if (bytes.get(start+k) != key[k]) return false;
+	}
+	return true;
+    }
+
+    private static int hash(String name) {
+	int h = name.hashCode() * 0x9E3779B9;
+	return h ^ (h>>>16);
+    }
+
+    /** @return The ID of the name, or -1 if it's not in the table */
+    private int find(String name) {
+	if (sorted) {
+	    int lo=0, hi=n-1;
+	    while(lo<=hi) {
+		int mid = (lo+hi)>>>1;
+		int c = nameAt(mid).compareTo(name);
+		if (c<0) lo = mid+1;
+		else if (c>0) hi = mid-1;
+		else return mid;
+	    }
+	    return -1;
+	} else {
+	    byte[] key = name.getBytes(UTF8);
+	    for(int j=hash(name) & mask; ; j=(j+1) & mask) {
+		int id = slots.get(j);
+		if (id<0) return -1;
+		if (nameEquals(id, key)) return id;
+	    }
+	}
+    }
+
+    public Integer get(Object key) {
+	if (!(key instanceof String)) return null;
+	int id = find((String)key);
+	return (id<0)? null: Integer.valueOf(id);
+    }
+
+    public boolean containsKey(Object key) {
+	return (key instanceof String) && find((String)key)>=0;
+    }
+
+    public Integer getOrDefault(Object key, Integer defaultValue) {
+	Integer v = get(key);
+	return (v==null)? defaultValue: v;
+    }
+
+    /* The names are not in the inherited HashMap, so its views would
+       be silently empty; use size() and nameAt() to iterate instead. */
+
+    public Set<String> keySet() {
+	throw new UnsupportedOperationException("MappedNameTable has no key set; use nameAt()");
+    }
+
+    public Collection<Integer> values() {
+	throw new UnsupportedOperationException("MappedNameTable has no value view; use nameAt()");
+    }
+
+    public Set<Map.Entry<String,Integer>> entrySet() {
+	throw new UnsupportedOperationException("MappedNameTable has no entry set; use nameAt()");
+    }
+
+    public void forEach(java.util.function.BiConsumer<? super String, ? super Integer> action) {
+	throw new UnsupportedOperationException("MappedNameTable cannot be iterated as a map; use nameAt()");
+    }
+
+    public boolean containsValue(Object value) {
+	return (value instanceof Integer) && ((Integer)value)>=0 && ((Integer)value)<n;
+    }
+
+    public Integer put(String key, Integer value) {
+	throw new UnsupportedOperationException("MappedNameTable is read-only");
+    }
+
+    public void putAll(Map<? extends String, ? extends Integer> m) {
+	throw new UnsupportedOperationException("MappedNameTable is read-only");
+    }
+
+    public Integer putIfAbsent(String key, Integer value) {
+	throw new UnsupportedOperationException("MappedNameTable is read-only");
+    }
+
+    public Integer remove(Object key) {
+	throw new UnsupportedOperationException("MappedNameTable is read-only");
+    }
+
+    public void clear() {
+	throw new UnsupportedOperationException("MappedNameTable is read-only");
+    }
+
+    /** Saves the list of names into a text file, one name per line */
+    void save(File f) throws IOException {
+	PrintWriter w = new PrintWriter(new FileWriter(f));
+	for(int i=0; i<n; i++) {
+	    w.println(nameAt(i));
+	}
+	w.close();
+    }
+
+    /** Writes a NameTable into a binary dictionary file */
+    static void write(NameTable t, File f) throws IOException {
+	final int n = t.size();
+	byte[][] nb = new byte[n][];
+	boolean sorted = true;
+	for(int i=0; i<n; i++) {
+	    nb[i] = t.nameAt(i).getBytes(UTF8);
+	    if (i>0 && t.nameAt(i-1).compareTo(t.nameAt(i)) >= 0) sorted = false;
+	}
+	int[] slots = new int[0];
+	if (!sorted) {
+	    int slotCnt = 4;
+	    while(slotCnt < 2*n) slotCnt *= 2;
+	    slots = new int[slotCnt];
+	    Arrays.fill(slots, -1);
+	    for(int i=0; i<n; i++) {
+		int j = hash(t.nameAt(i)) & (slotCnt-1);
+		while(slots[j]>=0) j = (j+1) & (slotCnt-1);
+		slots[j] = i;
+	    }
+	}
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<20));
+	out.writeInt(MAGIC);
+	out.writeInt(n);
+	out.writeInt(sorted? 1: 0);
+	out.writeInt(slots.length);
+	long offset = 0;
+	for(int i=0; i<n; i++) {
+	    out.writeInt((int)offset);
+	    offset += nb[i].length;
+	}
+	if (offset > Integer.MAX_VALUE) throw new IOException("Too much data for a dictionary file");
+	out.writeInt((int)offset);
+	for(int x: slots) out.writeInt(x);
+	for(byte[] b: nb) out.write(b);
+	out.close();
+    }
+
+    /** The name of the dictionary file for a text NameTable file:
+	e.g. users.dict for users.dat */
+    static File dictFile(File f) {
+	return new File(f.getParentFile(), f.getName().replaceAll("\\.dat$", "") + ".dict");
+    }
+
+    /** Opens a name table. If a dictionary file, no older than the text
+	file f, exists, it is memory-mapped; otherwise, f is read into an
+	ordinary NameTable.
+    */
+    static NameTable open(File f) throws IOException {
+	File g = dictFile(f);
+	if (g.exists() && g.lastModified() >= f.lastModified()) {
+	    return new MappedNameTable(g);
+	}
+	return new NameTable(f);
+    }
+
+    /** Converts users.dat and aid.dat in the specified index directory
+	to dictionary files. */
+    public static void main(String [] argv) throws IOException {
+	if (argv.length != 1) {
+	    System.out.println("Usage: MappedNameTable indexDir");
+	    return;
+	}
+	File dir = new File(argv[0]);
+	for(String name: new String[] {"users.dat", "aid.dat"}) {
+	    File f = new File(dir, name);
+	    NameTable t = new NameTable(f);
+	    File g = dictFile(f);
+	    write(t, g);
+	    System.out.println("Saved " + t.size() + " names from " + f + " to " + g);
+	}
+    }
+}
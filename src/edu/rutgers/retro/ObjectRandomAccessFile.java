@@ -3,8 +3,17 @@ package edu.rutgers.retro;
 
 import java.io.*;
 import java.util.*;
+import java.nio.*;
+import java.nio.channels.*;
 
-/** A RandomAccessFile which is aware of the size of objects stored in it */
+/** A RandomAccessFile which is aware of the size of objects stored in it.
+
+    <p>The batch and positional methods (readFully(ByteBuffer, long),
+    readInts(), readIntAt(), and RAF.readBatch() and readAt()) don't
+    use the file pointer, and each thread has its own batch buffer,
+    so they can be called from several threads concurrently. The
+    methods inherited from RandomAccessFile, and seekObject(), can't.
+*/
 public class ObjectRandomAccessFile extends RandomAccessFile {
     /** Size of one storable object, in bytes */
     final int sizeof;
@@ -25,7 +34,7 @@ public class ObjectRandomAccessFile extends RandomAccessFile {
 
     /** Staff happens... */
     final long lengthObjectLenient()  throws IOException {
- 	long len = length();
+	long len = length();
 	if (len % sizeof != 0) System.out.println("Warning: File size="+len+" is not a multiple of object size (" + sizeof +")");
 	return len / sizeof;
    }
@@ -37,6 +46,101 @@ public class ObjectRandomAccessFile extends RandomAccessFile {
 	return len / sizeof;
     }
 
+    /** Size of the buffer used for batch operations, in bytes */
+    static final int BATCH_BUFFER = 1<<16;
+    /** Used for batch operations; each thread's buffer is allocated
+	when first needed */
+    private final ThreadLocal<ByteBuffer> batchBufs = new ThreadLocal<ByteBuffer>() {
+	protected ByteBuffer initialValue() {
+	    return ByteBuffer.allocateDirect(BATCH_BUFFER - BATCH_BUFFER % sizeof);
+	}
+    };
+
+    /** Returns this thread's batch buffer, cleared, with its limit set
+	to at most n bytes */
+    final ByteBuffer batchBuffer(long n) {
+	ByteBuffer batchBuf = batchBufs.get();
+	batchBuf.clear();
+	if (n < batchBuf.capacity()) batchBuf.limit((int)n);
+	return batchBuf;
+    }
+
+    /** Fills the buffer (up to its limit) with a positional read,
+	which doesn't move the file pointer.
+	@param bytePos Position in the file, in bytes
+     */
+    final void readFully(ByteBuffer b, long bytePos) throws IOException {
+	FileChannel fc = getChannel();
+	while(b.hasRemaining()) {
+	    int n = fc.read(b, bytePos);
+	    if (n<0) throw new EOFException("Unexpected end of file at byte " + bytePos);
+	    bytePos += n;
+	}
+    }
+
+    /** Writes the buffer's content (up to its limit) with a
+	positional write, which doesn't move the file pointer.
+	@param bytePos Position in the file, in bytes
+     */
+    final void writeFully(ByteBuffer b, long bytePos) throws IOException {
+	FileChannel fc = getChannel();
+	while(b.hasRemaining()) {
+	    bytePos += fc.write(b, bytePos);
+	}
+    }
+
+    /** Reads n consecutive int values, with one positional read per
+	BATCH_BUFFER bytes.
+	@param pos Position of the first value, in terms of objects (the
+	file's objects must be ints)
+     */
+    final void readInts(long pos, int[] dst, int off, int n) throws IOException {
+	long bytePos = pos * sizeof;
+	while(n > 0) {
+	    ByteBuffer b = batchBuffer((long)n * sizeof);
+	    readFully(b, bytePos);
+	    b.flip();
+	    int m = b.remaining() / sizeof;
+	    b.asIntBuffer().get(dst, off, m);
+	    bytePos += b.remaining();
+	    off += m;
+	    n -= m;
+	}
+    }
+
+    /** Reads one int value with a positional read.
+	@param pos Position of the value, in terms of objects (the file's
+	objects must be ints)
+     */
+    final int readIntAt(long pos) throws IOException {
+	ByteBuffer b = batchBuffer(sizeof);
+	readFully(b, pos * sizeof);
+	return b.getInt(0);
+    }
+
+    final int[] readInts(long pos, int n) throws IOException {
+	int[] dst = new int[n];
+	readInts(pos, dst, 0, n);
+	return dst;
+    }
+
+    /** Writes n consecutive int values, with one positional write per
+	BATCH_BUFFER bytes.
+	@param pos Position of the first value, in terms of objects
+     */
+    final void writeInts(long pos, int[] src, int off, int n) throws IOException {
+	long bytePos = pos * sizeof;
+	while(n > 0) {
+	    ByteBuffer b = batchBuffer((long)n * sizeof);
+	    int m = b.remaining() / sizeof;
+	    b.asIntBuffer().put(src, off, m);
+	    writeFully(b, bytePos);
+	    bytePos += (long)m * sizeof;
+	    off += m;
+	    n -= m;
+	}
+    }
+
     /** Like super.setLength, 
 	@param n New file length, measured in units of object size, rather than in bytes
      */
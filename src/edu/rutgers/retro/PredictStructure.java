@@ -25,22 +25,22 @@ public class PredictStructure extends Coaccess {
 
     void predictStructure(boolean willWrite) throws IOException {
 	final int stepSec = 3600 * 24 * 7;
-	int nextPrintUtc = (uar.actionRAF.read(new ActionDetails(),0).utc/stepSec) * stepSec;
+	int nextPrintUtc = (uar.actions.utc(0)/stepSec) * stepSec;
 
 	System.out.println("Immediate-update recommender starts; CA nnz=" + mapSize());
 
-	final int len = (int)uar.actionRAF.lengthObject();
+	final int len = (int)uar.actions.lengthObject();
 	ActionDetails a = new ActionDetails();
+	final UserTable users = uar.userTable;
 
 	for(int pos = 0; pos<len; pos++) { // for all actions, ever
 
-	    uar.actionRAF.read(a,pos); 
+	    uar.actions.read(a,pos); 
 	    // the user who carried out this action
-	    UserActionReader.UserEntry user = uar.users[a.uid];
+	    ArticlesOfInterest aoi = users.ofInterest(a.uid);
 	    CAACompact2 caa = (CAACompact2)aSet.get(a.aid); 
-	    user.enableOfInterest(ArticlesOfInterest.BASIC);
-	    if (!user.ofInterest.isEmpty()) {  // update CAA for the articles of interest seen earlier by this user
-		for(int j: user.ofInterest.listArticles(a.utc)) {
+	    if (aoi!=null && !aoi.isEmpty()) {  // update CAA for the articles of interest seen earlier by this user
+		for(int j: aoi.listArticles(a.utc)) {
 		    CAACompact2 caz = (CAACompact2)aSet.get(j);
 		    caz.addValue(a.aid, 1);
 		    if (!caz.hasCandidates) caz.topCAA(n);
@@ -48,15 +48,15 @@ public class PredictStructure extends Coaccess {
 	    }
 
 	    if (caa!=null) { // this is an article of interest
-		user.ofInterest.addAction(a);
+		users.enableOfInterest(a.uid, ArticlesOfInterest.BASIC).addAction(a);
 
-		ActionDetails[] as = uar.earlyActionsForUser(a.uid);
-		for(ActionDetails y: as) {	    
-		    caa.addValue(y.aid, 1);
+		HistoryCache.Slice as = uar.earlySlice(a.uid);
+		for(int k=as.from; k<as.to; k++) {
+		    caa.addValue(as.aids[k], 1);
 		}
 		if (!caa.hasCandidates) caa.topCAA(n);
 	    }
-	    user.readCnt++;
+	    uar.advance(a);
 
 	    if (a.utc > nextPrintUtc) {
 		System.out.println("At t=" + a.utc +" ("+new Date((long)a.utc*1000L)+"); CA nnz=" + mapSize());
@@ -198,7 +198,6 @@ public class PredictStructure extends Coaccess {
 		}
 		structureIndexRAF.seekObject(aid);	
 		final long start = structureIndexRAF.readLong();
-		structureRAF.seekObject(start);
 		
 		if (i==0) {
 		    System.out.println("Start writing, at " + start + " values mark"); 
@@ -206,10 +205,11 @@ public class PredictStructure extends Coaccess {
 
 
 		CAACompact2 caa = (CAACompact2)ps.aSet.get(aid);
-		for(int k: caa.allTimeCandidates) {
-		    structureRAF.writeInt(k);
-		}
-		end = start + caa.allTimeCandidates.size();
+		int[] data = new int[caa.allTimeCandidates.size()];
+		int j=0;
+		for(int k: caa.allTimeCandidates) data[j++] = k;
+		structureRAF.writeInts(start, data, 0, data.length);
+		end = start + data.length;
 		structureIndexRAF.seekObject(aid+1);	
 		structureIndexRAF.writeLong(end);		   
 	    }	    
@@ -226,12 +226,7 @@ public class PredictStructure extends Coaccess {
 	    structureIndexRAF.seekObject(aid);
 	    long b1 = structureIndexRAF.readLong();
 	    long b2 = structureIndexRAF.readLong();			
-	    structureRAF.seekObject(b1);
-	    int [] data = new int[(int)(b2-b1)];
-	    for(int j=0; j<data.length; j++) {
-		data[j] = structureRAF.readInt();
-	    }
-	    return data;
+	    return structureRAF.readInts(b1, (int)(b2-b1));
 	}
 
     }
@@ -281,6 +276,12 @@ end
 	ParseConfig ht = new ParseConfig();
 
 	Profiler.profiler.setOn( ht.getOption("profile", true));
+	UserActionReader.mapActions = ht.getOption("mapActions", UserActionReader.mapActions);
+	UserActionReader.columnarActions = ht.getOption("columnar", UserActionReader.columnarActions);
+	UserActionReader.useClustered = ht.getOption("clustered", UserActionReader.useClustered);
+	UserActionReader.cacheBudget = ((long)ht.getOption("cacheMB", (int)(UserActionReader.cacheBudget>>20)))<<20;
+	UserActionReader.ioThreads = ht.getOption("ioThreads", UserActionReader.ioThreads);
+	UserActionReader.batchActions = ht.getOption("batchActions", UserActionReader.batchActions);
 
 	String indexPath = ht.getOption("index", "out");
 	// File 
@@ -327,14 +328,21 @@ end
 	    }    
 	    willWrite =  cmd.equals("arangewrite");
 	} else if (cmd.equals("uname") || cmd.equals("uid")) {
+	    Vector<Integer> users = new Vector<Integer>();
 	    while(ja<argv.length) {
 		String s = argv[ja++];
 		int uid = cmd.equals("uid")? Integer.parseInt(s) :
 		    uar.userNameTable.get(s);
-		ActionDetails[] as = uar.actionsForUser(uid);
-		System.out.println("For user " + uid + " ("+uar.userNameTable.nameAt(uid)+"), adding " + as.length + " articles" );
-		for(ActionDetails x: as) {
-		    articles.add(x.aid);
+		users.add(uid);
+	    }
+	    // the histories are read in batches, each in file order
+	    UserActionReader.HistoryBatches hs = uar.new HistoryBatches(toArray(users));
+	    for(int i=0; i<users.size(); i++) {
+		int uid = users.elementAt(i);
+		HistoryCache.Slice h = hs.get(i);
+		System.out.println("For user " + uid + " ("+uar.userNameTable.nameAt(uid)+"), adding " + h.size() + " articles" );
+		for(int k=h.from; k<h.to; k++) {
+		    articles.add(h.aids[k]);
 		}
 	    }
 	} else {
@@ -356,6 +364,7 @@ end
 	coa.predictStructure(willWrite);
 
 	Profiler.profiler.pop(Profiler.Code.OTHER);
+	uar.reportCache();
 
 	System.out.println("===Profiler report (wall clock time)===");
 	System.out.println(     Profiler.profiler.report());
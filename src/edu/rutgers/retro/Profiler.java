@@ -3,9 +3,14 @@ package  edu.rutgers.retro;
 import java.util.*;
 
 /** Auxiliary class used to report time spent by the computer
- * executing various parts of a Java application. */
+ * executing various parts of a Java application. Only the time
+ * spent by the thread which has created the Profiler is accounted
+ * for; calls from other threads (e.g. when several threads read
+ * users' histories) are ignored. */
 public class Profiler {
 
+    private final Thread owner = Thread.currentThread();
+
     private boolean on = true;
 
     public void enable() { on=true; }
@@ -53,7 +58,7 @@ public class Profiler {
     /** Beginning of a particular profiling section.
 	@param x identifying code for the secion. */
     public void push(Code x) {
-	if (!on) return;
+	if (!on || Thread.currentThread()!=owner) return;
 	Date now = new Date();
 	if (n>0) {
 	    if (started==null) throw new AssertionError("Profiler: started==null");
@@ -67,7 +72,7 @@ public class Profiler {
     /** End of a particular profiling section.
 	@param x identifying code for the secion; it should be the same as the code in the matching push() call. */
     public void pop(Code x) {
-	if (!on) return;
+	if (!on || Thread.currentThread()!=owner) return;
 	Date now = new Date();
 	if (n==0 || stack[n-1]!=x) throw new AssertionError("Profiler: pop " + x + " without matching push; stack=" +stackToString());
 	accounts[stack[n-1].ordinal()] += now.getTime() - started.getTime();
@@ -77,7 +82,7 @@ public class Profiler {
 
     /** End of section x and beginning of section y */
     public void replace(Code x, Code y) {
-	if (!on) return;
+	if (!on || Thread.currentThread()!=owner) return;
 	Date now = new Date();
 	if (n==0 || stack[n-1]!=x) throw new AssertionError("Profiler: replace " + x + " without matching push; stack=" +stackToString() );
 	accounts[stack[n-1].ordinal()] += now.getTime() - started.getTime();
@@ -3,6 +3,7 @@ package edu.rutgers.retro;
 
 import java.io.*;
 import java.util.*;
+import java.nio.*;
 
 
 public class RAF<T extends Storable> extends ObjectRandomAccessFile  {
@@ -29,6 +30,41 @@ public class RAF<T extends Storable> extends ObjectRandomAccessFile  {
 	seekObject(posObject);
 	return read(blank);
     }
+
+    /** Same as read(blank, posObject), but with a positional read,
+	which doesn't move the file pointer, so that several threads can
+	call it concurrently */
+    T readAt(T blank, long posObject) throws IOException  {
+	Profiler.profiler.push(Profiler.Code.READ);	
+	ByteBuffer b = batchBuffer(sizeof);
+	readFully(b, posObject * sizeof);
+	b.flip();
+	blank.readFrom(b);
+	Profiler.profiler.pop(Profiler.Code.READ);	
+	return blank;
+    }
+
+    /** Reads count consecutive objects, with one positional read per
+	BATCH_BUFFER bytes (rather than one read per field).
+	@param pos Position of the first object
+	@param blanks Objects No. off through off+count-1 of this array
+	will be filled with the data
+     */
+    void readBatch(long pos, T[] blanks, int off, int count) throws IOException  {
+	Profiler.profiler.push(Profiler.Code.READ);	
+	long bytePos = pos * sizeof;
+	while(count > 0) {
+	    ByteBuffer b = batchBuffer((long)count * sizeof);
+	    readFully(b, bytePos);
+	    b.flip();
+	    int m = b.remaining() / sizeof;
+	    for(int i=0; i<m; i++) blanks[off+i].readFrom(b);
+	    bytePos += (long)m * sizeof;
+	    off += m;
+	    count -= m;
+	}
+	Profiler.profiler.pop(Profiler.Code.READ);	
+    }
  
 
 }
@@ -0,0 +1,130 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+
+/** An ActionStore that reads actions.dat via RandomAccessFile. A
+    single action is read with one positional read; but when the
+    actions are read sequentially (as in the Coaccess replay loops),
+    they are read ahead in blocks of BLOCK records with
+    RAF.readBatch(), i.e. with one I/O operation per block. Similarly,
+    readMany() reads the records at nearby increasing positions
+    (e.g. those of one user's history, when the user was active
+    during a short period) with one I/O operation per run. Each
+    thread has its own read-ahead block, so several threads can read
+    from the store concurrently. */
+class RafActionStore implements ActionStore {
+    /** Number of records read ahead during sequential reading */
+    static final int BLOCK = 1024;
+    /** In readMany(), the largest gap between two wanted records
+	(in records) for which the records between them are read too,
+	rather than doing a separate read */
+    static final int WINDOW = 64;
+
+    private final RAF<ActionDetails> raf;
+
+    /** One thread's read-ahead state */
+    private static class ReadAhead {
+	/** Used by the single-field accessors */
+	final ActionDetails tmp = new ActionDetails();
+	/** The records at positions blockStart through blockStart+blockLen-1 */
+	final ActionDetails[] block = new ActionDetails[BLOCK];
+	long blockStart = 0;
+	int blockLen = 0;
+	/** The position read last */
+	long lastPos = -1;
+	/** Scratch space for readMany() */
+	final ActionDetails[] window = new ActionDetails[BLOCK];
+	ReadAhead() {
+	    for(int i=0; i<BLOCK; i++) block[i] = new ActionDetails();
+	    for(int i=0; i<BLOCK; i++) window[i] = new ActionDetails();
+	}
+    }
+
+    private final ThreadLocal<ReadAhead> readAheads = new ThreadLocal<ReadAhead>() {
+	protected ReadAhead initialValue() {
+	    return new ReadAhead();
+	}
+    };
+
+    RafActionStore(RAF<ActionDetails> _raf) {
+	raf = _raf;
+    }
+
+    public long lengthObject() throws IOException {
+	return raf.lengthObject();
+    }
+
+    /** Finds the record in the read-ahead block, filling the block if
+	this read continues a sequential scan.
+	@return The record, or null if it should be read directly */
+    private ActionDetails cached(ReadAhead r, long pos) throws IOException {
+	boolean sequential = (pos == r.lastPos + 1);
+	r.lastPos = pos;
+	if (pos >= r.blockStart && pos < r.blockStart + r.blockLen) return r.block[(int)(pos-r.blockStart)];
+	if (!sequential) return null;
+	r.blockStart = pos;
+	r.blockLen = (int)Math.min(BLOCK, raf.lengthObject() - pos);
+	if (r.blockLen <= 0) {
+	    r.blockLen = 0;
+	    return null;
+	}
+	raf.readBatch(pos, r.block, 0, r.blockLen);
+	return r.block[0];
+    }
+
+    public ActionDetails read(ActionDetails blank, long pos) throws IOException {
+	ActionDetails a = cached(readAheads.get(), pos);
+	if (a==null) return raf.readAt(blank, pos);
+	blank.uid = a.uid;
+	blank.aid = a.aid;
+	blank.utc = a.utc;
+	return blank;
+    }
+
+    /** Splits the positions into runs of increasing positions, with
+	gaps of at most WINDOW records, spanning at most BLOCK records;
+	each run is read with one RAF.readBatch() call */
+    public void readMany(int[] pos, int off, int n, ActionDetails[] blanks) throws IOException {
+	ActionDetails[] window = readAheads.get().window;
+	int i = 0;
+	while(i < n) {
+	    final long p0 = pos[off+i];
+	    int j = i+1;
+	    while(j < n && pos[off+j] > pos[off+j-1] && pos[off+j] - pos[off+j-1] <= WINDOW &&
+		  pos[off+j] - p0 < BLOCK) j++;
+	    if (j == i+1) {
+		raf.readAt(blanks[i], p0);
+	    } else {
+		raf.readBatch(p0, window, 0, (int)(pos[off+j-1] - p0 + 1));
+		for(int k=i; k<j; k++) {
+		    ActionDetails a = window[(int)(pos[off+k] - p0)];
+		    blanks[k].uid = a.uid;
+		    blanks[k].aid = a.aid;
+		    blanks[k].utc = a.utc;
+		}
+	    }
+	    i = j;
+	}
+    }
+
+    public int uid(long pos) throws IOException {
+	ReadAhead r = readAheads.get();
+	ActionDetails a = cached(r, pos);
+	return (a==null)? raf.readAt(r.tmp, pos).uid : a.uid;
+    }
+
+    public int aid(long pos) throws IOException {
+	ReadAhead r = readAheads.get();
+	ActionDetails a = cached(r, pos);
+	return (a==null)? raf.readAt(r.tmp, pos).aid : a.aid;
+    }
+
+    public int utc(long pos) throws IOException {
+	ReadAhead r = readAheads.get();
+	ActionDetails a = cached(r, pos);
+	return (a==null)? raf.readAt(r.tmp, pos).utc : a.utc;
+    }
+
+    /** The underlying file is closed by the owner of the RAF */
+    public void close() {}
+}
@@ -0,0 +1,521 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+import java.nio.charset.*;
+
+/** A fast, allocation-free alternative to JsonEntryIterator + ActionLine
+    for the log ingestion loops. It scans the bytes of a usage log
+    file directly, copies the values of the few fields we need
+    (type, arxiv_id, cookie_hash/cookie, ip_hash, user_agent, utc)
+    into reusable buffers, skips everything else, and resolves the
+    values to small integer IDs through ByteSymbolTables. A String
+    is only created the first time a particular value (an article ID,
+    a cookie, a user agent...) is seen; the results of
+    Json.canonicAid(), ArxivUserInferrer.inferUser() and
+    ActionLine.isKnownBot() are cached per value as well. Thus, once
+    the tables are warm, reading an entry creates no objects.
+
+    <p>One decoder object should be used for all files of a run, so that
+    the tables are only built once. Its results are identical to those
+    of ActionLine for well-formed log files; only the standard JSON
+    syntax (double-quoted keys and strings) is supported.
+
+    <p>Like Json.openLogReader(), the decoder interprets the bytes of
+    the file in the platform's default character set.
+
+    <p>Along with each cached user inference result, the kind of the
+    result is kept, so that the inferrer's counters (see
+    ArxivUserInferrer.report()) are still incremented for every
+    action, as with ActionLine.
+
+    <p>Sample usage:
+    <pre>
+    RawActionDecoder dec = new RawActionDecoder(inferrer);
+    dec.open(Json.openLogStream(f));
+    while(dec.next()) {
+	if (dec.ignorableAction || dec.isBot || dec.user&lt;0) continue;
+	String aid = dec.aidName(dec.aid);
+	...
+    }
+    dec.close();
+    </pre>
+*/
+class RawActionDecoder {
+
+    /** A reusable buffer for the bytes of one field value */
+    private static class Field {
+	byte[] b = new byte[256];
+	int len;
+	boolean present;
+	void clear() {
+	    len = 0;
+	    present = false;
+	}
+	void append(int c) {
+	    if (len == b.length) b = Arrays.copyOf(b, 2*len);
+	    b[len++] = (byte)c;
+	}
+	boolean is(byte[] x) {
+	    if (len!=x.length) return false;
+	    for(int i=0; i<len; i++) {
+		if (b[i]!=x[i]) return false;
+	    }
+	    return true;
+	}
+    }
+
+    /** The character set used by Json.openLogReader() */
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final boolean UTF8 = CHARSET.equals(StandardCharsets.UTF_8);
+
+    private static byte[] bytes(String s) {
+	return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final byte[] K_ENTRIES = bytes("entries"),
+	K_TYPE = bytes("type"),
+	K_ARXIV_ID = bytes("arxiv_id"),
+	K_COOKIE_HASH = bytes("cookie_hash"),
+	K_COOKIE = bytes("cookie"),
+	K_IP_HASH = bytes("ip_hash"),
+	K_USER_AGENT = bytes("user_agent"),
+	K_UTC = bytes("utc"),
+	UNKNOWN_AGENT = bytes("unknown");
+
+    private final Field key = new Field(), type = new Field(),
+	arxivId = new Field(), cookieHash = new Field(), cookie = new Field(),
+	ipHash = new Field(), userAgent = new Field(), num = new Field(),
+	userKey = new Field();
+
+    private InputStream in;
+    private final byte[] buf = new byte[1<<16];
+    private int pos=0, lim=0;
+    /** Set once we have reached the end of the "entries" array */
+    private boolean done = false;
+    /** Have we already read the first element of the array? */
+    private boolean started = false;
+    /** How many entries have been read from the current file */
+    private int cnt = 0;
+
+    final ArxivUserInferrer inferrer;
+
+    /** Maps each type value to the result of Json.typeIsAcceptable() */
+    private final ByteSymbolTable typeTable = new ByteSymbolTable();
+    private boolean[] typeIsAcceptable = new boolean[16];
+
+    /** Maps raw arxiv_id values to canonical article IDs (the
+	position in aidNames) */
+    private final ByteSymbolTable rawAidTable = new ByteSymbolTable();
+    private int[] rawAid2aid = new int[1024];
+    private final HashMap<String,Integer> aidMap = new HashMap<String,Integer>();
+    private final Vector<String> aidNames = new Vector<String>();
+
+    /** Maps the cookie (and/or IP) values to inferred user names (the
+	position in userNames), or -1 if the user can't be inferred */
+    private final ByteSymbolTable userKeyTable = new ByteSymbolTable();
+    private int[] userKey2user = new int[1024];
+    /** The kind of each inference result (ArxivUserInferrer.IGNORED etc.) */
+    private int[] userKey2kind = new int[1024];
+    private final HashMap<String,Integer> userMap = new HashMap<String,Integer>();
+    private final Vector<String> userNames = new Vector<String>();
+
+    /** Interned user agent strings, and the results of isKnownBot() on them */
+    private final ByteSymbolTable userAgentTable = new ByteSymbolTable();
+    private final Vector<String> userAgentNames = new Vector<String>();
+    private boolean[] userAgentIsBot = new boolean[1024];
+
+    /** Information about the most recently read entry. The meaning of
+	the flags is the same as in ActionLine. */
+    boolean ignorableAction, unexpectedAction, isBot;
+    int utc;
+    /** The canonical article ID; see aidName(). Only set for acceptable
+	entries */
+    int aid;
+    /** The inferred user (see userName()), or -1 if it could not be
+	inferred. Only set for acceptable entries that don't come from bots. */
+    int user;
+    /** The user agent; see userAgentName(). Only set for acceptable entries */
+    int userAgentId;
+
+    RawActionDecoder(ArxivUserInferrer _inferrer) {
+	inferrer = _inferrer;
+    }
+
+    /** The canonical form (see Json.canonicAid()) of an article ID */
+    String aidName(int i) { return aidNames.elementAt(i); }
+    /** The user name, as returned by the inferrer */
+    String userName(int i) { return userNames.elementAt(i); }
+    /** The (interned) user agent string */
+    String userAgentName(int i) { return userAgentNames.elementAt(i); }
+
+    /** Starts reading a new log file, positioning the decoder at the
+	beginning of its "entries" array.
+	@param _in The file's content (uncompressed)
+     */
+    void open(InputStream _in) throws IOException {
+	in = _in;
+	pos = lim = 0;
+	done = false;
+	started = false;
+	cnt = 0;
+	if (nextClean() != '{') throw syntaxError("A JSON object must begin with '{'");
+	while(true) {
+	    int c = nextClean();
+	    if (c == '}' || c < 0) {
+		done = true;
+		return;
+	    }
+	    if (c == ',') continue;
+	    if (c != '"') throw syntaxError("Expected a key");
+	    readString(key);
+	    if (nextClean() != ':') throw syntaxError("Expected a ':' after a key");
+	    c = nextClean();
+	    if (key.is(K_ENTRIES)) {
+		if (c != '[') throw syntaxError("The entries field must be an array");
+		return;
+	    }
+	    skipValue(c);
+	}
+    }
+
+    void close() throws IOException {
+	in.close();
+    }
+
+    /** @return The number of entries read from the current file so far */
+    int count() { return cnt; }
+
+    /** Reads the next log entry, and sets the public fields accordingly.
+	@return false if there are no more entries
+     */
+    boolean next() throws IOException {
+	if (done) return false;
+	int c = nextClean();
+	if (started) {
+	    if (c == ']') {
+		done = true;
+		return false;
+	    }
+	    if (c != ',') throw syntaxError("Expected a ',' or ']'");
+	    c = nextClean();
+	}
+	started = true;
+	if (c == ']') {
+	    done = true;
+	    return false;
+	}
+	if (c != '{') throw syntaxError("An entry must be a JSON object");
+	parseEntry();
+	cnt++;
+	resolve();
+	return true;
+    }
+
+    /** Reads the fields of one entry (whose opening brace has been
+	already read) into the field buffers */
+    private void parseEntry() throws IOException {
+	type.clear();
+	arxivId.clear();
+	cookieHash.clear();
+	cookie.clear();
+	ipHash.clear();
+	userAgent.clear();
+	num.clear();
+	while(true) {
+	    int c = nextClean();
+	    if (c == '}') return;
+	    if (c == ',') continue;
+	    if (c != '"') throw syntaxError("Expected a key");
+	    readString(key);
+	    if (nextClean() != ':') throw syntaxError("Expected a ':' after a key");
+	    c = nextClean();
+	    Field f = null;
+	    if (key.is(K_TYPE)) f = type;
+	    else if (key.is(K_ARXIV_ID)) f = arxivId;
+	    else if (key.is(K_COOKIE_HASH)) f = cookieHash;
+	    else if (key.is(K_COOKIE)) f = cookie;
+	    else if (key.is(K_IP_HASH)) f = ipHash;
+	    else if (key.is(K_USER_AGENT)) f = userAgent;
+	    else if (key.is(K_UTC)) f = num;
+
+	    if (f == num) {
+		num.clear();
+		if (c == '"') readString(num);
+		else readScalar(c, num);
+		num.present = true;
+	    } else if (f != null && c == '"') {
+		readString(f);
+		f.present = true;
+	    } else {
+		if (f != null) f.clear();
+		skipValue(c);
+	    }
+	}
+    }
+
+    /** Converts the field values of the current entry to IDs */
+    private void resolve() {
+	if (!type.present) throw new IllegalArgumentException("No type field in entry No. " + cnt);
+	int t = typeTable.add(type.b, 0, type.len);
+	if (t >= typeIsAcceptableCnt) { // a new type value
+	    typeIsAcceptable = grow(typeIsAcceptable, t);
+	    typeIsAcceptable[t] = Json.typeIsAcceptable(typeTable.stringAt(t, CHARSET));
+	    typeIsAcceptableCnt++;
+	}
+	isBot = false;
+	user = -1;
+	if (typeIsAcceptable[t]) {
+	    if (!arxivId.present) throw new IllegalArgumentException("No arxiv_id field in entry No. " + cnt);
+	    ignorableAction = unexpectedAction = false;
+	} else {
+	    ignorableAction = true;
+	    unexpectedAction = arxivId.present;
+	    return;
+	}
+
+	int r = rawAidTable.add(arxivId.b, 0, arxivId.len);
+	if (r >= aidResolvedCnt) { // a new arxiv_id value
+	    rawAid2aid = grow(rawAid2aid, r);
+	    rawAid2aid[r] = nameId(Json.canonicAid(rawAidTable.stringAt(r, CHARSET)), aidMap, aidNames);
+	    aidResolvedCnt++;
+	}
+	aid = rawAid2aid[r];
+
+	if (!num.present) throw new IllegalArgumentException("No utc field in entry No. " + cnt);
+	utc = parseInt(num);
+
+	int u = userAgent.present ?
+	    userAgentTable.add(userAgent.b, 0, userAgent.len) :
+	    userAgentTable.add(UNKNOWN_AGENT, 0, UNKNOWN_AGENT.length);
+	if (u >= userAgentNames.size()) { // a new user agent
+	    String s = userAgentTable.stringAt(u, CHARSET).intern();
+	    userAgentNames.add(s);
+	    userAgentIsBot = grow(userAgentIsBot, u);
+	    userAgentIsBot[u] = ActionLine.isKnownBot(s);
+	}
+	userAgentId = u;
+	isBot = (ActionLine.skipBots && userAgentIsBot[u]);
+	if (isBot) return;
+
+	Field c = cookieHash.present ? cookieHash : cookie;
+	userKey.clear();
+	if (inferrer.usesCookie()) {
+	    for(int i=0; i<c.len; i++) userKey.append(c.b[i]);
+	}
+	if (inferrer.usesIp()) {
+	    userKey.append(0);
+	    for(int i=0; i<ipHash.len; i++) userKey.append(ipHash.b[i]);
+	}
+	int k = userKeyTable.add(userKey.b, 0, userKey.len);
+	if (k >= userResolvedCnt) { // a new cookie (or IP)
+	    userKey2user = grow(userKey2user, k);
+	    userKey2kind = grow(userKey2kind, k);
+	    ArxivUserInferrer.Counts counts = inferrer.counts();
+	    String uname = inferrer.inferUser(new String(ipHash.b, 0, ipHash.len, CHARSET),
+					      new String(c.b, 0, c.len, CHARSET));
+	    userKey2user[k] = (uname==null)? -1 : nameId(uname, userMap, userNames);
+	    userKey2kind[k] = counts.last;
+	    userResolvedCnt++;
+	} else {
+	    inferrer.counts().count(userKey2kind[k]);
+	}
+	user = userKey2user[k];
+    }
+
+    /** How many entries of typeIsAcceptable[], rawAid2aid[] and
+	userKey2user[] have been filled */
+    private int typeIsAcceptableCnt=0, aidResolvedCnt=0, userResolvedCnt=0;
+
+    private static int nameId(String name, HashMap<String,Integer> map, Vector<String> names) {
+	Integer z = map.get(name);
+	if (z!=null) return z;
+	names.add(name);
+	map.put(name, names.size()-1);
+	return names.size()-1;
+    }
+
+    private static int[] grow(int[] a, int i) {
+	return (i < a.length) ? a : Arrays.copyOf(a, Math.max(2*a.length, i+1));
+    }
+    private static boolean[] grow(boolean[] a, int i) {
+	return (i < a.length) ? a : Arrays.copyOf(a, Math.max(2*a.length, i+1));
+    }
+
+    /** Parses the content of a buffer as an integer. Non-integer
+	numbers are truncated, like JSONObject.getInt() does */
+    private static int parseInt(Field f) {
+	long x = 0;
+	boolean neg = false;
+	int i = 0;
+	if (f.len>0 && f.b[0]=='-') {
+	    neg = true;
+	    i++;
+	}
+	if (i==f.len) throw new NumberFormatException("Empty number");
+	for(; i<f.len; i++) {
+	    int d = f.b[i] - '0';
+	    if (d<0 || d>9) {
+		// a rare case, e.g. "1.262304e9"
+		return (int)Double.parseDouble(new String(f.b, 0, f.len));
+	    }
+	    x = 10*x + d;
+	}
+	return (int)(neg? -x : x);
+    }
+
+    //---- low-level scanning ----------------------------------------
+
+    private int read() throws IOException {
+	if (pos == lim) {
+	    lim = in.read(buf, 0, buf.length);
+	    pos = 0;
+	    if (lim <= 0) {
+		lim = 0;
+		return -1;
+	    }
+	}
+	return buf[pos++] & 0xFF;
+    }
+
+    /** Steps back by one byte. Can only be called after a successful read() */
+    private void unread() {
+	pos--;
+    }
+
+    /** @return the next non-whitespace byte, or -1 at the end of input */
+    private int nextClean() throws IOException {
+	int c;
+	do {
+	    c = read();
+	} while(c==' ' || c=='\n' || c=='\r' || c=='\t');
+	return c;
+    }
+
+    /** Reads a string value (whose opening quote has been already read)
+	into a buffer, converting escape sequences to UTF-8 */
+    private void readString(Field f) throws IOException {
+	f.len = 0;
+	while(true) {
+	    int c = read();
+	    if (c < 0) throw syntaxError("Unterminated string");
+	    if (c == '"') return;
+	    if (c != '\\') {
+		f.append(c);
+		continue;
+	    }
+	    c = read();
+	    switch(c) {
+	    case 'b': f.append('\b'); break;
+	    case 'f': f.append('\f'); break;
+	    case 'n': f.append('\n'); break;
+	    case 'r': f.append('\r'); break;
+	    case 't': f.append('\t'); break;
+	    case 'u': appendChar(f, readHex4()); break;
+	    case -1: throw syntaxError("Unterminated string");
+	    default: f.append(c); // '"', '\\', '/'
+	    }
+	}
+    }
+
+    private int readHex4() throws IOException {
+	int x = 0;
+	for(int i=0; i<4; i++) {
+	    int c = read();
+	    int d = Character.digit(c, 16);
+	    if (c<0 || d<0) throw syntaxError("Illegal escape");
+	    x = 16*x + d;
+	}
+	return x;
+    }
+
+    /** Writes a character (given as one UTF-16 code unit from a \\u
+	escape) as bytes in our character set */
+    private void appendChar(Field f, int ch) throws IOException {
+	if (Character.isHighSurrogate((char)ch)) {
+	    // Expect a low surrogate to follow, in another escape sequence
+	    int c = read();
+	    if (c=='\\') {
+		if (read()=='u') {
+		    int lo = readHex4();
+		    if (Character.isLowSurrogate((char)lo)) {
+			ch = Character.toCodePoint((char)ch, (char)lo);
+		    } else {
+			appendChar(f, '?');
+			appendChar(f, lo);
+			return;
+		    }
+		} else {
+		    throw syntaxError("Illegal escape");
+		}
+	    } else {
+		if (c >= 0) unread();
+		ch = '?';
+	    }
+	} else if (Character.isLowSurrogate((char)ch)) {
+	    ch = '?';
+	}
+	if (ch < 0x80) {
+	    f.append(ch);
+	} else if (!UTF8) {
+	    for(byte b: new String(Character.toChars(ch)).getBytes(CHARSET)) f.append(b);
+	} else if (ch < 0x800) {
+	    f.append(0xC0 | (ch>>6));
+	    f.append(0x80 | (ch & 0x3F));
+	} else if (ch < 0x10000) {
+	    f.append(0xE0 | (ch>>12));
+	    f.append(0x80 | ((ch>>6) & 0x3F));
+	    f.append(0x80 | (ch & 0x3F));
+	} else {
+	    f.append(0xF0 | (ch>>18));
+	    f.append(0x80 | ((ch>>12) & 0x3F));
+	    f.append(0x80 | ((ch>>6) & 0x3F));
+	    f.append(0x80 | (ch & 0x3F));
+	}
+    }
+
+    /** Reads an unquoted value (number, true, false, null) */
+    private void readScalar(int c, Field f) throws IOException {
+	f.len = 0;
+	while(c >= 0 && c!=',' && c!='}' && c!=']' && c>' ') {
+	    f.append(c);
+	    c = read();
+	}
+	if (c >= 0) unread();
+    }
+
+    /** Skips a value of any type.
+	@param c The first byte of the value
+     */
+    private void skipValue(int c) throws IOException {
+	if (c == '"') {
+	    skipString();
+	} else if (c == '{' || c == '[') {
+	    int depth = 1;
+	    while(depth > 0) {
+		c = read();
+		if (c < 0) throw syntaxError("Unterminated object or array");
+		if (c == '"') skipString();
+		else if (c == '{' || c == '[') depth++;
+		else if (c == '}' || c == ']') depth--;
+	    }
+	} else {
+	    while(c >= 0 && c!=',' && c!='}' && c!=']') c = read();
+	    if (c >= 0) unread();
+	}
+    }
+
+    private void skipString() throws IOException {
+	while(true) {
+	    int c = read();
+	    if (c < 0) throw syntaxError("Unterminated string");
+	    if (c == '"') return;
+	    if (c == '\\') read();
+	}
+    }
+
+    private IOException syntaxError(String msg) {
+	return new IOException("Log file syntax error near entry No. " + cnt + ": " + msg);
+    }
+
+}
@@ -0,0 +1,190 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+import java.text.*;
+import java.util.concurrent.atomic.*;
+
+/** An ActionStore for an action list that has been physically split
+    into monthly segment files (actions-YYYYMM.dat), each with the same
+    record format as actions.dat. Each segment holds a contiguous range
+    of positions, so the positions (and thus the pointers in
+    userHistory.dat) stay the same as in actions.dat. The list of
+    segments is in the text file actions.segments, one line per
+    segment: file name, first position, number of actions.
+
+    <p>Segments are memory-mapped only when first accessed, so a
+    replay of the last few months (see Coaccess -DfromUtc) only touches
+    the segments it needs (plus, unless userActions.dat is used, those
+    in which the users' earlier actions are).
+
+    <p>Since the actions are only approximately chronological, the
+    month of a position is that of the latest action at or before it;
+    this keeps the months of the segments in increasing order.
+
+    <p>To split an existing index:
+    <pre>
+    java edu.rutgers.retro.SegmentedActionStore indexDir
+    </pre>
+    After that, the readers (UserActionReader), and the converters that
+    build other files from the action list (AidIndex, ClusteredHistory,
+    ColumnarActionStore, see open()), can work without actions.dat.
+    Appending to the index (UserStats appendActions) still needs it,
+    though; so actions.dat should only be removed from an index to
+    which no more logs will be added.
+*/
+class SegmentedActionStore implements ActionStore {
+    static final int SIZEOF = MappedActionStore.SIZEOF;
+
+    private final File indexDir;
+    private final String[] names;
+    /** The first position of each segment, plus the total length at the end */
+    private final long[] starts;
+    /** The segments mapped so far. (They are mapped without locking;
+	if two threads map the same segment at once, one of the
+	mappings is dropped) */
+    private final AtomicReferenceArray<MappedActionStore> segments;
+
+    static File listFile(File indexDir) {
+	return new File(indexDir, "actions.segments");
+    }
+
+    /** Are the segments there, and (unless actions.dat has been
+	removed) up to date with actions.dat: not older than it, and
+	with the same total number of actions? */
+    static boolean exists(File indexDir) {
+	File f = listFile(indexDir), a = new File(indexDir, "actions.dat");
+	if (!f.exists()) return false;
+	if (!a.exists()) return true;
+	if (f.lastModified() < a.lastModified()) return false;
+	try {
+	    return new SegmentedActionStore(indexDir).lengthObject() == a.length() / SIZEOF;
+	} catch(IOException ex) {
+	    return false;
+	}
+    }
+
+    /** Opens the action list of an index for the converters:
+	actions.dat, memory-mapped, if it is there; otherwise, its
+	segments */
+    static ActionStore open(File indexDir) throws IOException {
+	File a = new File(indexDir, "actions.dat");
+	if (!a.exists() && listFile(indexDir).exists()) return new SegmentedActionStore(indexDir);
+	return new MappedActionStore(a);
+    }
+
+    SegmentedActionStore(File _indexDir) throws IOException {
+	indexDir = _indexDir;
+	Vector<String> v = new Vector<String>();
+	Vector<Long> w = new Vector<Long>();
+	LineNumberReader r = new LineNumberReader(new FileReader(listFile(indexDir)));
+	String s;
+	long end = 0;
+	while((s=r.readLine())!=null) {
+	    s = s.trim();
+	    if (s.equals("")) continue;
+	    String[] q = s.split("\\s+");
+	    if (q.length!=3) throw new IOException("Cannot parse line " + r.getLineNumber() + " in " + listFile(indexDir) + ": " + s);
+	    long start = Long.parseLong(q[1]);
+	    if (start != end) throw new IOException("Segment " + q[0] + " does not start where the previous one ended");
+	    v.add(q[0]);
+	    w.add(start);
+	    end = start + Long.parseLong(q[2]);
+	}
+	r.close();
+	names = v.toArray(new String[0]);
+	starts = new long[names.length+1];
+	for(int i=0; i<names.length; i++) starts[i] = w.elementAt(i);
+	starts[names.length] = end;
+	segments = new AtomicReferenceArray<MappedActionStore>(names.length);
+    }
+
+    public long lengthObject() { return starts[names.length]; }
+
+    /** Finds the segment containing the position */
+    private int segmentOf(long pos) {
+	int i = Arrays.binarySearch(starts, 0, names.length, pos);
+	return (i<0)? -i-2 : i;
+    }
+
+    /** Returns the i-th segment, mapping it if needed */
+    private MappedActionStore segment(int i) throws IOException {
+	MappedActionStore s = segments.get(i);
+	if (s==null) {
+	    s = new MappedActionStore(new File(indexDir, names[i]));
+	    if (s.lengthObject() != starts[i+1]-starts[i]) throw new IOException("Wrong size of segment file " + names[i]);
+	    if (!segments.compareAndSet(i, null, s)) s = segments.get(i);
+	}
+	return s;
+    }
+
+    public ActionDetails read(ActionDetails blank, long pos) throws IOException {
+	int i = segmentOf(pos);
+	return segment(i).read(blank, pos - starts[i]);
+    }
+    public void readMany(int[] pos, int off, int n, ActionDetails[] blanks) throws IOException {
+	for(int k=0; k<n; k++) read(blanks[k], pos[off+k]);
+    }
+    public int uid(long pos) throws IOException {
+	int i = segmentOf(pos);
+	return segment(i).uid(pos - starts[i]);
+    }
+    public int aid(long pos) throws IOException {
+	int i = segmentOf(pos);
+	return segment(i).aid(pos - starts[i]);
+    }
+    public int utc(long pos) throws IOException {
+	int i = segmentOf(pos);
+	return segment(i).utc(pos - starts[i]);
+    }
+
+    public void close() {}
+
+    /** Splits actions.dat into monthly segments */
+    static void split(File indexDir) throws IOException {
+	File actionFile = new File(indexDir, "actions.dat");
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(actionFile), 1<<20));
+	long n = actionFile.length() / SIZEOF;
+	SimpleDateFormat fmt = new SimpleDateFormat("yyyyMM");
+	fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+	PrintWriter list = new PrintWriter(new FileWriter(listFile(indexDir)));
+	DataOutputStream out = null;
+	String month = null;
+	long start = 0;
+	int max = Integer.MIN_VALUE;
+	for(long pos=0; pos<n; pos++) {
+	    int uid = in.readInt(), aid = in.readInt(), utc = in.readInt();
+	    if (utc > max || out==null) {
+		max = Math.max(max, utc);
+		String m = fmt.format(new Date((long)max * 1000L));
+		if (!m.equals(month)) {
+		    if (out!=null) {
+			out.close();
+			list.println("actions-" + month + ".dat " + start + " " + (pos-start));
+		    }
+		    month = m;
+		    start = pos;
+		    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(indexDir, "actions-" + month + ".dat")), 1<<20));
+		}
+	    }
+	    out.writeInt(uid);
+	    out.writeInt(aid);
+	    out.writeInt(utc);
+	}
+	if (out!=null) {
+	    out.close();
+	    list.println("actions-" + month + ".dat " + start + " " + (n-start));
+	}
+	list.close();
+	in.close();
+	System.out.println("Split " + n + " actions into monthly segments, listed in " + listFile(indexDir));
+    }
+
+    public static void main(String [] argv) throws IOException {
+	if (argv.length != 1) {
+	    System.out.println("Usage: SegmentedActionStore indexDir");
+	    return;
+	}
+	split(new File(argv[0]));
+    }
+}
@@ -1,5 +1,6 @@
 package edu.rutgers.retro;
 import java.io.*;
+import java.nio.*;
 
 /*
 import java.util.*;
@@ -16,5 +17,11 @@ public interface Storable {
     //void fill(byte[]);
     void write(RandomAccessFile f)  throws IOException;
     void readFrom(RandomAccessFile f) throws IOException;
+    /** Writes the data in the same format as write(RandomAccessFile)
+	does; used for buffered writes (see UserActionSaver) */
+    void write(ByteBuffer b);
+    /** Reads the data written by write(ByteBuffer); used for batch
+	reads (RAF.readBatch) */
+    void readFrom(ByteBuffer b);
     //default void readFrom(RandomAccessFile f, int posN) throws IOException {}
 }
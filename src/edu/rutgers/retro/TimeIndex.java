@@ -0,0 +1,93 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+
+/** A sparse time index for the action list, which allows one to find
+    the position of the first action at or after a given time without
+    scanning the list from the beginning.
+
+    <p>Since the actions in actions.dat are only approximately in
+    chronological order, the index stores, for every STRIDE-th
+    position k*STRIDE, the maximum utc of all actions preceding it.
+    These values are non-decreasing, and can be binary-searched; after
+    that, at most STRIDE actions need to be looked at.
+
+    <p>The index is saved in actions.tindex, and is rebuilt (with one
+    scan of the action list) whenever that file is missing or stale.
+    File layout: int MAGIC, int STRIDE, long n, int cnt, int[cnt].
+*/
+class TimeIndex {
+    static final int MAGIC = 0x54494431; // "TID1"
+    static final int STRIDE = 1024;
+
+    private final ActionStore actions;
+    private final long n;
+    /** prefixMax[k] is the max utc of the actions at positions before k*STRIDE */
+    private final int[] prefixMax;
+
+    static File file(File indexDir) {
+	return new File(indexDir, "actions.tindex");
+    }
+
+    private TimeIndex(ActionStore _actions, int[] _prefixMax) throws IOException {
+	actions = _actions;
+	n = actions.lengthObject();
+	prefixMax = _prefixMax;
+    }
+
+    /** Loads the index from actions.tindex, or builds it (and tries
+	to save it) if the file does not exist or does not match the
+	action list */
+    static TimeIndex open(File indexDir, ActionStore actions) throws IOException {
+	File f = file(indexDir);
+	long n = actions.lengthObject();
+	if (f.exists()) {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1<<16));
+	    try {
+		if (in.readInt()==MAGIC && in.readInt()==STRIDE && in.readLong()==n) {
+		    int[] pm = new int[in.readInt()];
+		    for(int k=0; k<pm.length; k++) pm[k] = in.readInt();
+		    return new TimeIndex(actions, pm);
+		}
+	    } finally {
+		in.close();
+	    }
+	}
+	System.out.println("Building the time index for " + n + " actions");
+	int[] pm = new int[(int)((n + STRIDE - 1) / STRIDE) + 1];
+	int max = Integer.MIN_VALUE;
+	for(long pos=0; pos<n; pos++) {
+	    if (pos % STRIDE == 0) pm[(int)(pos / STRIDE)] = max;
+	    max = Math.max(max, actions.utc(pos));
+	}
+	pm[pm.length-1] = max;
+	try {
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<16));
+	    out.writeInt(MAGIC);
+	    out.writeInt(STRIDE);
+	    out.writeLong(n);
+	    out.writeInt(pm.length);
+	    for(int x: pm) out.writeInt(x);
+	    out.close();
+	} catch(IOException ex) {
+	    System.out.println("Warning: could not save the time index to " + f + ": " + ex);
+	}
+	return new TimeIndex(actions, pm);
+    }
+
+    /** @return The position of the first action whose utc is &ge; t,
+	or the length of the action list if there is none */
+    long firstPosAtOrAfter(int t) throws IOException {
+	// find the largest k such that all actions before k*STRIDE have utc &lt; t
+	int lo=0, hi=prefixMax.length-1;
+	while(lo<hi) {
+	    int mid = (lo+hi+1)>>>1;
+	    if (prefixMax[mid] < t) lo = mid;
+	    else hi = mid-1;
+	}
+	long pos = Math.min((long)lo * STRIDE, n);
+	while(pos < n && actions.utc(pos) < t) pos++;
+	return pos;
+    }
+}
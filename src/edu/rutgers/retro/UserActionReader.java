@@ -2,34 +2,125 @@ package edu.rutgers.retro;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.nio.channels.*;
 
 /** An auxiliary class used to read the index files created by 
-     UserActionSaver */
+     UserActionSaver.
+
+     <p>All files are read with positional reads (or via read-only
+     mappings), with per-thread scratch buffers, so the methods that
+     read users' histories (actionsForUser(), actionsForUserIt()) and
+     the actions (actions.read() etc.) can be called from several
+     threads concurrently, without locking. The replay state
+     (userTable, the history cache, and the methods that use them:
+     earlySlice(), advance(), startAt() etc.) is meant for a single
+     thread.
+
+     <p>If the index has overflow segments that have not been merged
+     yet (see IndexAppender), each user's history consists of the
+     user's section of userHistory.dat, followed by those of the
+     segments (see readPointers()).
+*/
 public class  UserActionReader extends UserActionSaver {
 
+    /** Reads an index file such as userHistoryIndex.dat (a list of
+	int offsets) with one mapped bulk read.
+	@param end The value to put after the last offset (normally,
+	the length of the file the offsets point into)
+	@return An array with all offsets from the file, followed by end
+    */
+    static int[] readOffsets(File indexFile, int end) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+	FileChannel fc = raf.getChannel();
+	long len = fc.size();
+	if (len % (Integer.SIZE/8) != 0) throw new IllegalArgumentException("File size is not a multiple of object size (" + (Integer.SIZE/8) +")");
+	int n = (int)(len / (Integer.SIZE/8));
+	int[] offsets = new int[n+1];
+	fc.map(FileChannel.MapMode.READ_ONLY, 0, len).asIntBuffer().get(offsets, 0, n);
+	raf.close();
+	offsets[n] = end;
+	return offsets;
+    }
+
+    /** The beginning of each user's section of userHistory.dat, plus
+	the file's length at the end */
+    private int[] offsets;
+
+    /** The overflow segments, in order (empty if there are none) */
+    private IndexAppender.HistorySection[] overflow = new IndexAppender.HistorySection[0];
+    /** The number of each user's actions in the overflow segments, or
+	null if there are no segments */
+    private int[] overflowCnt = null;
+
     private void readIndexFile( File historyIndexFile ) throws IOException {
-	ObjectRandomAccessFile userHistoryIndexRAF = new ObjectRandomAccessFile(historyIndexFile,"r", Integer.SIZE/8);
-	users = new UserEntry[userNameTable.size()];
-	if (users.length != userHistoryIndexRAF.lengthObject()) throw new IllegalArgumentException("File size mismatch for " + userHistoryIndexRAF + "; should be " + users.length + "*" + userHistoryIndexRAF.sizeof);
-	int offset = userHistoryIndexRAF.readInt();
-	for(int i=0; i< users.length; i++) {
-	    int offsetNext =  (i<users.length-1)?
-		userHistoryIndexRAF.readInt() : 
-		(int)userHistoryRAF.lengthObject();
-	    users[i] = new UserEntry(offsetNext-offset, offset, false);
-	    offset = offsetNext;
+	offsets = readOffsets(historyIndexFile, (int)userHistoryRAF.lengthObject());
+	if (overflow.length>0 && offsets.length-1 < userNameTable.size()) {
+	    // the users added by the appends have empty sections
+	    int n = offsets.length-1;
+	    offsets = Arrays.copyOf(offsets, userNameTable.size()+1);
+	    Arrays.fill(offsets, n+1, offsets.length, offsets[n]);
+	}
+	if (userNameTable.size() != offsets.length-1) throw new IllegalArgumentException("File size mismatch for " + historyIndexFile + "; should be " + userNameTable.size() + "*" + (Integer.SIZE/8));
+	if (overflow.length>0) {
+	    overflowCnt = new int[userCnt()];
+	    for(IndexAppender.HistorySection h: overflow) {
+		for(int uid=0; uid<overflowCnt.length; uid++) overflowCnt[uid] += h.count(uid);
+	    }
+	}
+	userTable = new UserTable(userCnt());
+    }
+
+    /** The number of users */
+    int userCnt() {
+	return offsets.length-1;
+    }
+
+    /** The number of actions in the user's history */
+    int total(int uid) {
+	return offsets[uid+1] - offsets[uid] + (overflowCnt==null? 0 : overflowCnt[uid]);
+    }
+
+    /** Reads the pointers to the user's actions No. k through k+n-1
+	into dst[off...]: from userHistory.dat, and then, past the end
+	of the user's section there, from the overflow segments */
+    private void readPointers(int uid, int k, int[] dst, int off, int n) throws IOException {
+	int base = offsets[uid+1] - offsets[uid];
+	if (k < base) {
+	    int m = Math.min(n, base-k);
+	    userHistoryRAF.readInts(offsets[uid] + k, dst, off, m);
+	    k += m;
+	    off += m;
+	    n -= m;
+	}
+	k -= base;
+	for(int j=0; j<overflow.length && n>0; j++) {
+	    int c = overflow[j].count(uid);
+	    if (k < c) {
+		int m = Math.min(n, c-k);
+		overflow[j].readInts(uid, k, dst, off, m);
+		k = 0;
+		off += m;
+		n -= m;
+	    } else {
+		k -= c;
+	    }
 	}
-	userHistoryIndexRAF.close();
+	if (n>0) throw new IllegalArgumentException("User " + uid + " has only " + total(uid) + " actions");
     }
 
+    /** The users' state during a replay (used by Coaccess etc.) */
+    UserTable userTable;
+
     void report() throws IOException {
- 	for(int i=0; i< users.length; i++) {
-	    System.out.println("User["+i+"] has " + users[i].total + " actions");
+	for(int i=0; i< userCnt(); i++) {
+	    System.out.println("User["+i+"] has " + total(i) + " actions");
 	    /*
-	    userHistoryRAF.seekObject(users[i].offset0);
-	    for(int k=0; k< users[i].total; k++) {
+	    userHistoryRAF.seekObject(offsets[i]);
+	    for(int k=0; k< total(i); k++) {
 		int actionID = userHistoryRAF.readInt();
-		ActionDetails a = actionRAF.read(new ActionDetails(), actionID);
+		ActionDetails a = actions.read(new ActionDetails(), actionID);
 		System.out.println("a["+actionID+"]=" + a);
 	    }
 	    */
@@ -41,70 +132,377 @@ public class  UserActionReader extends UserActionSaver {
     }
 
 
-    /** Reads the first n actions for the specified user */
-    private ActionDetails[] someActionsForUser(int uid, final int n)  throws IOException {
-	ActionDetails[] as = new ActionDetails[n];
-	userHistoryRAF.seekObject(users[uid].offset0);
-	for(int k=0; k< as.length; k++) {
-	    int actionID = userHistoryRAF.readInt();
-	    as[k] = actionRAF.read(new ActionDetails(), actionID);
-	}
+    /** Reads the actions No. k0 through n-1 for the specified user */
+    private ActionDetails[] someActionsForUser(int uid, int k0, final int n)  throws IOException {
+	if (clustered!=null) return clustered.read(uid, offsets[uid], k0, n-k0);
+	ActionDetails[] as = new ActionDetails[n-k0];
+	int[] actionIDs = new int[as.length];
+	readPointers(uid, k0, actionIDs, 0, as.length);
+	for(int k=0; k< as.length; k++) as[k] = new ActionDetails();
+	actions.readMany(actionIDs, 0, as.length, as);
 	return as;	
     }
 
     /** For a specified user, reads the actions that are within the
-	first n actions of this user, and whose timestamp is
+	actions No. k0 through n-1 of this user, and whose timestamp is
 	&ge; startSec. 	Since it is not known in advance how many
 	actions will satisfy this condition, this method does
 	reading in reverse order, but returns a properly chronologically
 	ordered array.
      */
-    private ActionDetails[] someRecentActionsForUser(int uid, final int n, int startUtc)  throws IOException {
-	ActionDetails[] as = new ActionDetails[n]; 
+    private ActionDetails[] someRecentActionsForUser(int uid, int k0, final int n, int startUtc)  throws IOException {
+	if (clustered!=null) {
+	    ActionDetails[] as = clustered.read(uid, offsets[uid], k0, n-k0);
+	    int k = as.length;
+	    while(k>0 && as[k-1].utc >= startUtc) k--;
+	    return (k==0)? as: Arrays.copyOfRange(as, k, as.length);
+	}
+	ActionDetails[] as = new ActionDetails[n-k0]; 
+	// the pointers are read backwards, one BATCH_BUFFER-sized
+	// block at a time, until the window's start is passed
+	final int B = ObjectRandomAccessFile.BATCH_BUFFER / userHistoryRAF.sizeof;
+	int[] actionIDs = new int[Math.min(B, as.length)];
 	int cnt = 0;
-	long offset1 = users[uid].offset0 + n;
-	for(int k=n-1; k>=0; k--) {
-	    userHistoryRAF.seekObject(users[uid].offset0 + k);
-	    int actionID = userHistoryRAF.readInt();
-	    as[k] = actionRAF.read(new ActionDetails(), actionID);
-	    if (as[k].utc < startUtc) break;
-	    cnt++;
-	}	
-	return (cnt==n)? as: Arrays.copyOfRange(as, n-cnt, n);
+	for(int hi=n; hi>k0; hi-=B) {
+	    int lo = Math.max(k0, hi-B);
+	    readPointers(uid, lo, actionIDs, 0, hi-lo);
+	    for(int k=hi-1; k>=lo; k--) {
+		ActionDetails a = actions.read(new ActionDetails(), actionIDs[k-lo]);
+		if (a.utc < startUtc) return Arrays.copyOfRange(as, as.length-cnt, as.length);
+		as[k-k0] = a;
+		cnt++;
+	    }
+	}
+	return as;
     }
 
 
     /** Reads all actions for the specified user */
     ActionDetails[] actionsForUser(int uid)  throws IOException {
-	return someActionsForUser(uid, users[uid].total);
+	return someActionsForUser(uid, 0, total(uid));
     }
 
-    /** The first readCnt actions for the specified user */
-    ActionDetails[] earlyActionsForUser(int uid)  throws IOException {
-	return someActionsForUser(uid, users[uid].readCnt);
+    /** Number of threads used by actionsForUsers() */
+    static int ioThreads = 4;
+    /** The executor used by actionsForUsers(); created when first
+	needed. Its threads are daemon threads, so that it needs no
+	shutting down */
+    private static ExecutorService ioPool = null;
+
+    private static synchronized ExecutorService ioPool() {
+	if (ioPool==null) ioPool = Executors.newFixedThreadPool(ioThreads, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "History reader");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	return ioPool;
     }
 
-    /** For a specified user, reads the actions that are within the
-	first readCnt actions of this user, and whose timestamp is
-	&ge; startSec.
+    /** Reads the complete histories of many users, e.g. of a batch
+	of the users to be tested by Coaccess (see HistoryBatches), with
+	ioThreads threads. The users'
+	sections of userHistory.dat (or userActions.dat) are in uid
+	order, so the users are sorted by uid, and split into ioThreads
+	runs, each read by one thread in file order. Unless
+	userActions.dat is used, all the users' pointers are then
+	sorted, and the actions they point to are read from actions.dat
+	in file order (again, split into ioThreads runs).
+
+	@param uids The users; may be in any order, and contain repeats
+	@return A future for an array of histories, aligned with uids:
+	each history is a slice of primitive (aid, utc) arrays (shared
+	by all histories)
+     */
+    CompletableFuture<HistoryCache.Slice[]> actionsForUsers(final int[] uids) {
+	final int[] sorted = uids.clone();
+	Arrays.sort(sorted);
+	int m = 0;
+	for(int i=0; i<sorted.length; i++) {
+	    if (i==0 || sorted[i]!=sorted[i-1]) sorted[m++] = sorted[i];
+	}
+	final int[] users = Arrays.copyOf(sorted, m);
+	// where each user's history goes in the shared arrays
+	final int[] starts = new int[users.length+1];
+	for(int j=0; j<users.length; j++) starts[j+1] = starts[j] + total(users[j]);
+	final int[] aids = new int[starts[users.length]], utcs = new int[aids.length];
+	// read the sections, with pointers (ptrs) or, with userActions.dat, the actions
+	final int[] ptrs = (clustered==null)? new int[aids.length] : null;
+	CompletableFuture<?>[] parts = new CompletableFuture<?>[ioThreads];
+	for(int t=0; t<ioThreads; t++) {
+	    final int j1 = users.length*t/ioThreads, j2 = users.length*(t+1)/ioThreads;
+	    parts[t] = CompletableFuture.runAsync(new Runnable() {
+		    public void run() {
+			try {
+			    ActionDetails[] as = null;
+			    for(int j=j1; j<j2; j++) {
+				int uid = users[j], n = total(uid);
+				if (clustered==null) {
+				    readPointers(uid, 0, ptrs, starts[j], n);
+				} else {
+				    if (as==null || as.length < n) {
+					as = new ActionDetails[n];
+					for(int k=0; k<n; k++) as[k] = new ActionDetails();
+				    }
+				    clustered.read(uid, offsets[uid], 0, n, as);
+				    for(int k=0; k<n; k++) {
+					aids[starts[j]+k] = as[k].aid;
+					utcs[starts[j]+k] = as[k].utc;
+				    }
+				}
+			    }
+			} catch(IOException ex) {
+			    throw new UncheckedIOException(ex);
+			}
+		    }
+		}, ioPool());
+	}
+	CompletableFuture<Void> done = CompletableFuture.allOf(parts);
+	if (clustered==null) done = done.thenCompose(new Function<Void, CompletableFuture<Void>>() {
+		public CompletableFuture<Void> apply(Void x) {
+		    return readPointed(ptrs, aids, utcs);
+		}
+	    });
+	return done.thenApply(new Function<Void, HistoryCache.Slice[]>() {
+		public HistoryCache.Slice[] apply(Void x) {
+		    HistoryCache.Slice[] result = new HistoryCache.Slice[uids.length];
+		    for(int i=0; i<uids.length; i++) {
+			int j = Arrays.binarySearch(users, uids[i]);
+			result[i] = new HistoryCache.Slice(aids, utcs, starts[j], starts[j+1]);
+		    }
+		    return result;
+		}
+	    });
+    }
+
+    /** Reads the actions pointed to by ptrs[i] into aids[i] and
+	utcs[i], in the order of the pointers, with ioThreads threads */
+    private CompletableFuture<Void> readPointed(final int[] ptrs, final int[] aids, final int[] utcs) {
+	// (pointer, index) pairs, in pointer order
+	final long[] order = new long[ptrs.length];
+	for(int i=0; i<ptrs.length; i++) order[i] = ((long)ptrs[i] << 32) | i;
+	Arrays.sort(order);
+	CompletableFuture<?>[] parts = new CompletableFuture<?>[ioThreads];
+	for(int t=0; t<ioThreads; t++) {
+	    final int i1 = order.length*t/ioThreads, i2 = order.length*(t+1)/ioThreads;
+	    parts[t] = CompletableFuture.runAsync(new Runnable() {
+		    public void run() {
+			int[] pos = new int[IT_BLOCK];
+			ActionDetails[] as = new ActionDetails[IT_BLOCK];
+			for(int k=0; k<as.length; k++) as[k] = new ActionDetails();
+			try {
+			    for(int i=i1; i<i2; i+=IT_BLOCK) {
+				int n = Math.min(IT_BLOCK, i2-i);
+				for(int k=0; k<n; k++) pos[k] = (int)(order[i+k] >>> 32);
+				actions.readMany(pos, 0, n, as);
+				for(int k=0; k<n; k++) {
+				    int q = (int)order[i+k];
+				    aids[q] = as[k].aid;
+				    utcs[q] = as[k].utc;
+				}
+			    }
+			} catch(IOException ex) {
+			    throw new UncheckedIOException(ex);
+			}
+		    }
+		}, ioPool());
+	}
+	return CompletableFuture.allOf(parts);
+    }
+
+    /** Waits for the result of actionsForUsers() or the like,
+	rethrowing an IOException that has happened in a reader thread */
+    static <T> T await(Future<T> f) throws IOException {
+	try {
+	    return f.get();
+	} catch(InterruptedException ex) {
+	    throw new IOException("Interrupted", ex);
+	} catch(ExecutionException ex) {
+	    Throwable e = ex.getCause();
+	    if (e instanceof UncheckedIOException) throw ((UncheckedIOException)e).getCause();
+	    if (e instanceof RuntimeException) throw (RuntimeException)e;
+	    if (e instanceof Error) throw (Error)e;
+	    throw new IOException(e);
+	}
+    }
+
+    /** The max total length of the histories read by one
+	actionsForUsers() call of HistoryBatches */
+    static int batchActions = 1<<22;
+
+    /** Sequential access to the histories of a list of users. They
+	are read by actionsForUsers() in consecutive batches of users
+	with no more than batchActions actions in all (but at least one
+	user), and a batch is only read once the caller is done with
+	the previous one, so at most one batch is in memory at a time.
     */
-    ActionDetails[] recentActionsForUser(int uid, int startUtc)  throws IOException {
-	return someRecentActionsForUser(uid, users[uid].readCnt, startUtc);
+    class HistoryBatches {
+	private final int[] uids;
+	/** The current batch is for uids[from] through uids[to-1] */
+	private int from=0, to=0;
+	private HistoryCache.Slice[] batch = null;
+	HistoryBatches(int[] _uids) {
+	    uids = _uids;
+	}
+	/** The complete history of uids[i]. The values of i passed
+	    in successive calls must not decrease */
+	HistoryCache.Slice get(int i) throws IOException {
+	    if (i < from) throw new IllegalArgumentException("History No. " + i + " has already been discarded");
+	    while(i >= to) {
+		batch = null;
+		from = to;
+		long size = 0;
+		do {
+		    size += total(uids[to++]);
+		} while(to<uids.length && size + total(uids[to]) <= batchActions);
+		batch = await(actionsForUsers(Arrays.copyOfRange(uids, from, to)));
+	    }
+	    return batch[i-from];
+	}
+    }
+
+    /** The actions No. startCnt through readCnt-1 for the specified
+	user (i.e., normally, the first readCnt actions), as a (usually,
+	zero-copy) view of the user's cached history arrays */
+    HistoryCache.Slice earlySlice(int uid)  throws IOException {
+	final int k0 = userTable.startCnt[uid], n = userTable.readCnt[uid];
+	if (cache==null) return new HistoryCache.Slice(someActionsForUser(uid, k0, n));
+	return cachedActions(uid, k0, n).slice(k0, n);
+    }
+
+    /** Those of the actions No. startCnt through readCnt-1 for the
+	specified user whose timestamp is &ge; startUtc, as a (usually,
+	zero-copy) view of the user's cached history arrays */
+    HistoryCache.Slice recentSlice(int uid, int startUtc)  throws IOException {
+	final int k0 = userTable.startCnt[uid], n = userTable.readCnt[uid];
+	if (cache==null) return new HistoryCache.Slice(someRecentActionsForUser(uid, k0, n, startUtc));
+	return cachedActions(uid, k0, n).recent(k0, n, startUtc);
+    }
+
+    /** To be called once the replay has processed action a: advances
+	the user's readCnt, and appends the action to the user's cached
+	history (if the user has one), so that it never needs to be
+	re-read from disk. (The pointers in each user's section of
+	userHistory.dat are in increasing order, so the replay reaches
+	the user's actions in the order in which they are numbered) */
+    void advance(ActionDetails a) {
+	int k = userTable.readCnt[a.uid]++;
+	if (cache!=null) cache.append(a.uid, k, a.aid, a.utc);
+    }
+
+    /** Memory budget for the history cache, in bytes; 0 means no cache */
+    static long cacheBudget = 64L<<20;
+    /** Caches the histories read by the *Slice() methods; null if not
+	used */
+    HistoryCache cache = null;
+
+    /** Returns the cache entry containing the user's actions No. k0
+	through n-1, reading from disk only what isn't cached yet */
+    private HistoryCache.Entry cachedActions(int uid, int k0, int n) throws IOException {
+	HistoryCache.Entry e = cache.get(uid);
+	cache.servedCnt += n-k0;
+	if (e!=null && e.covers(k0, n)) {
+	    cache.hitCnt++;
+	} else if (e!=null && e.k0 <= k0) {
+	    cache.extendCnt++;
+	    cache.extend(e, someActionsForUser(uid, e.k0 + e.n, n));
+	} else {
+	    cache.missCnt++;
+	    e = cache.put(uid, k0, someActionsForUser(uid, k0, n));
+	}
+	return e;
+    }
+
+    /** Prints the history cache statistics, if it has been used */
+    void reportCache() {
+	if (cache!=null && cache.servedCnt > 0) System.out.println(cache.report());
+    }
+
+    /** Prepares for a replay of the action list starting from the
+	specified position (rather than from the beginning): for each
+	user, the actions that precede this position are excluded
+	from the user's history, by setting startCnt (and readCnt) to
+	the number of such actions. (The pointers in each user's
+	section of userHistory.dat are in increasing order, so these are
+	the user's first startCnt actions). This is done with one
+	sequential pass over userHistory.dat.
+     */
+    void startAt(long pos) throws IOException {
+	if (pos==0) return;
+	File historyFile = new File(indexDir, "userHistory.dat");
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(historyFile), 1<<20));
+	for(int uid=0; uid<userCnt(); uid++) {
+	    int k=0;
+	    for(int i=offsets[uid]; i<offsets[uid+1]; i++) {
+		if (in.readInt() < pos) k++;
+	    }
+	    for(IndexAppender.HistorySection h: overflow) {
+		for(int actionID: h.read(uid)) {
+		    if (actionID < pos) k++;
+		}
+	    }
+	    userTable.startCnt[uid] = userTable.readCnt[uid] = k;
+	}
+	in.close();
     }
 
-    /** Iterator for reading the stored list of actions for a given user */
+    /** Number of actions read at once by actionsForUserIt() */
+    static final int IT_BLOCK = 1024;
+
+    /** Iterator for reading the stored list of actions for a given
+	user. The actions are read in blocks of up to IT_BLOCK: the
+	block's pointers are read from userHistory.dat with one read,
+	and, since they are in increasing order, the actions they point
+	to are then read from actions.dat in file order (see
+	ActionStore.readMany()). With userActions.dat, the block is
+	read with one read.
+
+	<p>The iterator is a flyweight: every next() call returns the
+	same ActionDetails object, overwritten with the next action, so
+	the caller must copy an action it wants to keep.
+     */
     Iterator<ActionDetails> actionsForUserIt(final int uid) {
 	return new Iterator<ActionDetails>() {
+	    final int n = total(uid);
+	    /** Returned by every next() call */
+	    final ActionDetails cursor = new ActionDetails();
+	    /** The actions No. blockStart through blockStart+blockLen-1 */
+	    ActionDetails[] block = null;
+	    int[] ptrs = null;
+	    int blockStart = 0, blockLen = 0;
 	    int nextPtr = 0;
-	    public boolean	hasNext() { return nextPtr < users[uid].total; }
+	    public boolean	hasNext() { return nextPtr < n; }
 	    public ActionDetails next() throws NoSuchElementException {
-		try {
-		    userHistoryRAF.seekObject(users[uid].offset0 + nextPtr);
-		    int actionID = userHistoryRAF.readInt();
-		    nextPtr++;
-		    return actionRAF.read(new ActionDetails(), actionID);	
-		} catch (IOException ex) {
-		    throw new  NoSuchElementException("IOException happened when reading action data");
+		if (!hasNext()) throw new NoSuchElementException();
+		if (nextPtr == blockStart + blockLen) {
+		    try {
+			readBlock();
+		    } catch (IOException ex) {
+			throw new  NoSuchElementException("IOException happened when reading action data");
+		    }
+		}
+		ActionDetails a = block[nextPtr - blockStart];
+		nextPtr++;
+		cursor.uid = a.uid;
+		cursor.aid = a.aid;
+		cursor.utc = a.utc;
+		return cursor;
+	    }
+	    /** Reads the block starting at nextPtr */
+	    private void readBlock() throws IOException {
+		if (block==null) {
+		    block = new ActionDetails[Math.min(n, IT_BLOCK)];
+		    for(int i=0; i<block.length; i++) block[i] = new ActionDetails();
+		}
+		blockStart = nextPtr;
+		blockLen = Math.min(n - nextPtr, block.length);
+		if (clustered!=null) {
+		    clustered.read(uid, offsets[uid], blockStart, blockLen, block);
+		} else {
+		    if (ptrs==null) ptrs = new int[block.length];
+		    readPointers(uid, blockStart, ptrs, 0, blockLen);
+		    actions.readMany(ptrs, 0, blockLen, block);
 		}
 	    }
 	    public void remove() {
@@ -113,21 +511,71 @@ public class  UserActionReader extends UserActionSaver {
 	};
     }
 
-    /**
+    /** The directory where the index files are */
+    final File indexDir;
+
+    /** If true, actions.dat is memory-mapped (MappedActionStore);
+	otherwise, it's read via RandomAccessFile */
+    static boolean mapActions = true;
+    /** If true, and the columnar action files exist, they are used
+	instead of actions.dat (see ColumnarActionStore) */
+    static boolean columnarActions = false;
+    /** Used to read actions.dat */
+    ActionStore actions;
+    /** If true, and an up-to-date userActions.dat exists, users'
+	histories are read from it (see ClusteredHistory) */
+    static boolean useClustered = true;
+    /** Used to read userActions.dat, or null if it's not used */
+    ClusteredHistory clustered = null;
+
+    /** The name tables are memory-mapped from users.dict and aid.dict,
+	if these files exist (see MappedNameTable)
        @param indexDir The directory where the index files are
      */
     UserActionReader(File indexDir)  throws IOException{
-	super( new NameTable(new File(indexDir, "users.dat")),
-	       new NameTable(new File(indexDir, "aid.dat")));
+	super( MappedNameTable.open(new File(indexDir, "users.dat")),
+	       MappedNameTable.open(new File(indexDir, "aid.dat")));
+	this.indexDir = indexDir;
+	IndexAppender.finishMerge(indexDir);
+	int segCnt = IndexAppender.segmentCount(indexDir);
+	if (segCnt>0) {
+	    System.out.println("Will read user histories from " + new File(indexDir, "userHistory.dat") + " and " + segCnt + " unmerged overflow segment(s)");
+	    overflow = new IndexAppender.HistorySection[segCnt];
+	    for(int k=1; k<=segCnt; k++) {
+		overflow[k-1] = new IndexAppender.HistorySection(IndexAppender.segmentFile(indexDir, k), IndexAppender.segmentIndexFile(indexDir, k));
+	    }
+	}
 
 	openFiles(indexDir, "r");
+	if (columnarActions && ColumnarActionStore.exists(indexDir)) {
+	    actions = new ColumnarActionStore(indexDir);
+	} else if (SegmentedActionStore.exists(indexDir)) {
+	    System.out.println("Will read actions from the segments listed in " + SegmentedActionStore.listFile(indexDir));
+	    actions = new SegmentedActionStore(indexDir);
+	} else {
+	    if (columnarActions) System.out.println("No columnar action files in " + indexDir + "; will use actions.dat");
+	    actions = mapActions? new MappedActionStore(new File(indexDir, "actions.dat")):
+		new RafActionStore(actionRAF);
+	}
+	if (useClustered && segCnt==0 && ClusteredHistory.exists(indexDir)) {
+	    System.out.println("Will read user histories from " + ClusteredHistory.file(indexDir));
+	    clustered = new ClusteredHistory(indexDir);
+	}
 	File historyIndexFile = new File(indexDir, "userHistoryIndex.dat");
 	readIndexFile(historyIndexFile);
+	if (cacheBudget > 0) cache = new HistoryCache(cacheBudget, userCnt());
+    }
+
+    void closeFiles() throws IOException {
+	actions.close();
+	if (clustered!=null) clustered.close();
+	for(IndexAppender.HistorySection h: overflow) h.close();
+	super.closeFiles();
     }
 
     /** Used in incremental coacces computation, at the beginning of a new run */
     void reset() {
-	
+	userTable.reset();
     }
 
 }
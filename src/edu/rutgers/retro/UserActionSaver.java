@@ -3,6 +3,7 @@ package edu.rutgers.retro;
 import java.io.*;
 import java.util.*;
 import java.text.*;
+import java.nio.*;
 
 import org.json.*;
 
@@ -45,7 +46,7 @@ class UserActionSaver {
 	/** The beginning of this user's data in the file. The units are action
 	    records, rather than bytes */
 	int offset0;
-	/** During log reading: How many actions for this user have been already read from the JSON file? Once all the logs have been read, this should become equal to this.total. This variable is also used during incremental coaccess computation, indicating how many action values from this user's section of the index have been processed so far. */
+	/** During log reading: How many actions for this user have been already read from the JSON file? Once all the logs have been read, this should become equal to this.total. (During incremental coaccess computation, the same role is played by UserTable.readCnt). */
 	int readCnt=0;
 	/** How many actions for this user have been already read from the JSON file AND saved to the binary file. This numbers is always &le;  readCnt; it is &lt; readCnt is the user has  duplicate actions (multiple actions applied to the same article). */
 	int savedCnt=0;
@@ -61,69 +62,62 @@ class UserActionSaver {
 	    readCnt++;
 	    // Should we just ignore this action as a duplicate?
 	    if (myPages==null) readMyPages( );
-	    if (myPages.contains(act.aid)) {
+	    boolean isNew = myPages.add(act.aid);
+	    // no more actions will come for this user
+	    if (readCnt == total) myPages = null;
+	    if (!isNew) {
 		dupCnt ++;
 		return false;
-	    }  else myPages.add(act.aid);
+	    }
 
 	    // Record action details in the all-actions list
-	    long len = actionRAF.length();
-	    actionRAF.seek(len);	    
-	    int actionID = (int)(len/act.sizeof());
-	    actionRAF.store(act);
+	    int actionID = appendAction(act);
 	    // Add a pointer to this action to this user's history
-	    userHistoryRAF.seekObject(offset0 + savedCnt);
-	    userHistoryRAF.writeInt(actionID);
+	    if (pending==null) pending = new int[4];
+	    else if (pendingCnt==pending.length) pending = Arrays.copyOf(pending, 2*pendingCnt);
+	    pending[pendingCnt++] = actionID;
 	    savedCnt++;
+	    if (++pendingTotal >= HISTORY_BATCH) flushHistory();
 	    return true;
 	}
 
-	/** List of articles covered in this user's history */
-	HashSet<Integer> myPages = null;
-	/** Reads the list of articles already covered for this user */
-	void readMyPages(  ) throws IOException {	   
-	    myPages = new HashSet<Integer>();
-	    userHistoryRAF.seekObject(offset0);
-	    for(int i=0; i<savedCnt; i++) {
-		int actionId = userHistoryRAF.readInt();
-		int aid = actionRAF.read(new ActionDetails(), actionId).aid;
-		myPages.add(aid);
-	    }	    
+	/** Pointers to this user's most recent actions (the last
+	    pendingCnt of the savedCnt saved ones), which have not been
+	    written to userHistory.dat yet */
+	int[] pending = null;
+	int pendingCnt = 0;
+
+	/** Writes this user's pending pointers to userHistory.dat */
+	void flushPending() throws IOException {
+	    userHistoryRAF.writeInts(offset0 + savedCnt - pendingCnt, pending, 0, pendingCnt);
+	    pending = null;
+	    pendingCnt = 0;
 	}
 
-	/** Moves down this user's section of the user history file, 
-	    to remove blank space.
-	    @param newOffset Where the beginning of this user's section should be moved to 
+	/** List of articles covered in this user's history. It is kept
+	    for the entire duration of index construction (rather than
+	    being re-read from the data files for each log file), and
+	    discarded once all of the user's actions have been read. */
+	IntSet myPages = null;
+	/** Reads the list of articles already covered for this user
+	    from the data files. During a normal index build this only
+	    happens before the user's first action, so no actual reading
+	    is needed.
 	*/
-	void compact(int newOffset) throws IOException  {
-	    if (newOffset>offset0) throw new IllegalArgumentException("This is not compacting!");
-
-	    int byteCnt = savedCnt * userHistoryRAF.sizeof;
-	    byte[] buf = new byte[byteCnt];
-	    userHistoryRAF.seekObject(offset0);
-	    userHistoryRAF.read(buf);
-	    offset0 = newOffset;
-	    userHistoryRAF.seekObject(offset0);
-	    userHistoryRAF.write(buf);
-	    total = savedCnt;
-	}
-
-
-	/** Used in incremental coacces computation, to indicate that this user has had some actions involving this run's articles of interest. Contains the list of articles of interest the user has seen so far, or null if none has been seen yet. */
-	//Vector<Integer> ofInterest=null;
-	ArticlesOfInterest ofInterest=null;
-	/** Creates the ArticlesOfInterest object for this user, as appropriate
-	    for this Coaccess run. */
-	void enableOfInterest(int windowSec) {
-	    if (ofInterest==null) 
-		ofInterest = (windowSec < 0) ? new BasicArticlesOfInterest():
-		    new WindowArticlesOfInterest(windowSec);
-	}
-
-	/** Used in incremental coacces computation, at the beginning of a new run */
-	void reset() {
-	    readCnt=0;
-	    ofInterest=null;
+	void readMyPages(  ) throws IOException {	   
+	    myPages = new IntSet();
+	    // pointers already in the file
+	    int writtenCnt = savedCnt - pendingCnt;
+	    if (writtenCnt > 0) {
+		int[] actionIDs = userHistoryRAF.readInts(offset0, writtenCnt);
+		for(int i=0; i<writtenCnt; i++) {
+		    myPages.add(aidOfAction(actionIDs[i]));
+		}	    
+	    }
+	    // pointers still in memory
+	    for(int i=0; i<pendingCnt; i++) {
+		myPages.add(aidOfAction(pending[i]));
+	    }
 	}
 
     }
@@ -164,18 +158,49 @@ class UserActionSaver {
 	System.out.println("Predicted length of the (uncompacted) history file = " + offset);
     }
 
+    /** Used (and reused for all files) when UserStats.rawDecode is on */
+    private RawActionDecoder decoder = null;
+    /** Map the decoder's user and article numbers to our internal
+	IDs; -1 means "not looked up yet" */
+    private int[] decUser2uid = new int[0], decAid2aid = new int[0];
+    /** Reused for every action */
+    private final ActionDetails act = new ActionDetails();
+    /** Counters for the current log file */
+    private int actionCnt, recordedActionCnt;
+
     void addFromJsonFile(File f) throws IOException, JSONException {
+	addFromJsonFile(f, Json.openLogStream(f));
+    }
+
+    /** @param in The uncompressed content of the log file f. It will
+	be closed by this method. */
+    void addFromJsonFile(File f, InputStream in) throws IOException, JSONException {
 	System.out.println("Processing log file " + f);
 
-	JSONObject jsoOuter = Json.readJsonFile(f);
-	JSONArray jsa = jsoOuter.getJSONArray("entries");
-	int len = jsa.length();
-	System.out.println("Json data file action entry count = " + len);
+	actionCnt=0;
+	recordedActionCnt=0;
+	dupCnt=0;
+	int entryCnt = UserStats.rawDecode? addFromJsonFileRaw(in) : addFromJsonFileJ(in);
+	System.out.println("Json data file action entry count = " + entryCnt);
+	endOfFile();
+    }
 
-	int actionCnt=0, recordedActionCnt=0;
+    /** Reports the counts for the log file just processed, and
+	resets them. (The users' myPages sets are kept, to be used with
+	the next file). */
+    private void endOfFile() {
+	System.out.println("Found " + actionCnt + " acceptable actions in this file, recorded " + recordedActionCnt + ". Detected " + dupCnt + " duplicates");
+	actionCnt=0;
+	recordedActionCnt=0;
 	dupCnt=0;
-	for(int i=0; i< len; i++) {
-	    JSONObject jso = jsa.getJSONObject(i);
+    }
+
+    /** Reads a log file with JsonEntryIterator and ActionLine.
+	@return the number of entries in the file */
+    private int addFromJsonFileJ(InputStream in) throws IOException, JSONException {
+	JsonEntryIterator it = new JsonEntryIterator(new InputStreamReader(in));
+	while(it.hasNext()) {
+	    JSONObject jso = it.next();
 	    ActionLine z = new ActionLine(jso);
 
 	    if (z.ignorableAction || z.isBot) {
@@ -185,38 +210,129 @@ class UserActionSaver {
 	    String uname= inferrer.inferUser(z.ip_hash,  z.cookie);
 	    if (z.aid==null || uname==null) continue;
 	    int uid =  userNameTable.get(uname);
-	    UserEntry u = users[uid];
 	    int aid = aidNameTable.get(z.aid); // internal article aid
-	    ActionDetails act = new ActionDetails(uid, aid, z.utc);
+	    addAction(uid, aid, z.utc);
+	}
+	it.close();
+	return it.count();
+    }
 
-	    if (u.readCnt == u.total) {
-		if (u.willReject) continue; // as expected
-		
-		throw new IllegalArgumentException("For user["+uid+"]="+uname+"  (offset0="+u.offset0+"), the readCnt has exceeded the predicted value=" + u.total +", even though the user was never rejected");
+    /** Reads a log file with RawActionDecoder. The user names and
+	article IDs are only looked up in the NameTables the first time
+	the decoder sees them; after that, everything is done with ints.
+	@return the number of entries in the file */
+    private int addFromJsonFileRaw(InputStream in) throws IOException {
+	if (decoder==null) decoder = new RawActionDecoder(inferrer);
+	RawActionDecoder z = decoder;
+	z.open(in);
+	while(z.next()) {
+	    if (z.ignorableAction || z.isBot || z.user<0) {
+		continue;
 	    }
-	    actionCnt++;
-
-	    boolean rv = u.processAction(act);
-	    if (rv) recordedActionCnt++;
+	    if (z.user >= decUser2uid.length) decUser2uid = growFilled(decUser2uid, z.user);
+	    int uid = decUser2uid[z.user];
+	    if (uid<0) uid = decUser2uid[z.user] = userNameTable.get(z.userName(z.user));
+	    if (z.aid >= decAid2aid.length) decAid2aid = growFilled(decAid2aid, z.aid);
+	    int aid = decAid2aid[z.aid];
+	    if (aid<0) aid = decAid2aid[z.aid] = aidNameTable.get(z.aidName(z.aid));
+	    addAction(uid, aid, z.utc);
 	}
-	System.out.println("Found " + actionCnt + " acceptable actions in this file, recorded " + recordedActionCnt + ". Detected " + dupCnt + " duplicates");
-	for(UserEntry u: users) {
-	    u.myPages = null; // to enable GC
+	z.close();
+	return z.count();
+    }
+
+    /** Enlarges an array so that it will have element [i], filling
+	the new elements with -1 */
+    private static int[] growFilled(int[] a, int i) {
+	int n = a.length;
+	a = Arrays.copyOf(a, Math.max(2*n, i+1024));
+	Arrays.fill(a, n, a.length, -1);
+	return a;
+    }
+
+    /** Records one action read from a log file, unless the user's
+	action count has already reached its predicted value (which
+	happens if the user was rejected as too active) */
+    private void addAction(int uid, int aid, int utc) throws IOException {
+	UserEntry u = users[uid];
+	if (u.readCnt == u.total) {
+	    if (u.willReject) return; // as expected
+		
+	    throw new IllegalArgumentException("For user["+uid+"]="+userNameTable.nameAt(uid)+"  (offset0="+u.offset0+"), the readCnt has exceeded the predicted value=" + u.total +", even though the user was never rejected");
 	}
-	
+	actionCnt++;
+
+	act.uid = uid;
+	act.aid = aid;
+	act.utc = utc;
+	boolean rv = u.processAction(act);
+	if (rv) recordedActionCnt++;
     }
 
-    /** Moves down each user's section of the user history file, 
-	to remove all blank space that exist whenever savedCnt!=total
-	@param newOffset Where the beginning of this user's section should be moved to 
+    /** Buffer size for the streams used in compact() */
+    static final int COMPACT_BUFFER = 1<<22;
+
+    /** Removes all blank space that exist in the user history file
+	whenever savedCnt!=total, moving each user's section down.
+	Since the sections are in the same order as the users, this is
+	done by reading the old file sequentially and writing the
+	compacted data into a new file, in one forward pass. The new
+	file then replaces the old one, and is reopened as
+	userHistoryRAF.
     */
     void compact() throws IOException {
-	int offset = 0;
+	long t0 = System.currentTimeMillis();
+	File tmpFile = new File(historyFile.getPath() + ".tmp");
+	userHistoryRAF.close();
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(historyFile), COMPACT_BUFFER));
+	BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile), COMPACT_BUFFER);
+	final int sizeof = userHistoryRAF.sizeof;
+	byte[] buf = new byte[1<<16];
+	long inPos = 0; // position in the old file, in bytes
+	int offset = 0; // in the new file, in records
+	long reportAt = REPORT_INTERVAL;
 	for(int i=0; i< users.length; i++) {
-	    users[i].compact(offset);
-	    offset += users[i].total;
+	    UserEntry u = users[i];
+	    if (u.savedCnt>0) {
+		// skip the blank space before this user's data
+		long skip = (long)u.offset0 * sizeof - inPos;
+		while(skip > 0) {
+		    int n = in.skipBytes((int)Math.min(skip, Integer.MAX_VALUE));
+		    if (n<=0) throw new EOFException("Unexpected end of " + historyFile);
+		    skip -= n;
+		}
+		long len = (long)u.savedCnt * sizeof;
+		inPos = (long)u.offset0 * sizeof + len;
+		while(len > 0) {
+		    int n = (int)Math.min(len, buf.length);
+		    in.readFully(buf, 0, n);
+		    out.write(buf, 0, n);
+		    len -= n;
+		}
+	    }
+	    u.offset0 = offset;
+	    u.total = u.savedCnt;
+	    offset += u.total;
+	    if (inPos >= reportAt) {
+		reportCompacting(i+1, inPos, (long)offset*sizeof, t0);
+		reportAt = inPos + REPORT_INTERVAL;
+	    }
 	}
-	userHistoryRAF.setLengthObject(offset);
+	in.close();
+	out.close();
+	reportCompacting(users.length, inPos, (long)offset*sizeof, t0);
+	if (!historyFile.delete() || !tmpFile.renameTo(historyFile)) {
+	    throw new IOException("Failed to replace " + historyFile + " with " + tmpFile);
+	}
+	userHistoryRAF=new ObjectRandomAccessFile(historyFile,"rw", sizeof);
+    }
+
+    /** How often (in bytes read) compact() reports its progress */
+    static final long REPORT_INTERVAL = 1L<<30;
+
+    private void reportCompacting(int userCnt, long bytesRead, long bytesWritten, long t0) {
+	double sec = Math.max(1, System.currentTimeMillis() - t0) * 0.001;
+	System.out.println("Compacting: " + userCnt + " of " + users.length + " users done; read " + (bytesRead>>20) + " MB, wrote " + (bytesWritten>>20) + " MB in " + sec + " sec (" + (int)((bytesRead+bytesWritten)/sec/(1<<20)) + " MB/s)");
     }
 
     /** Creates a file which stores offsets into the userHistory file for
@@ -232,35 +348,141 @@ class UserActionSaver {
 
     RAF<ActionDetails> actionRAF;
     ObjectRandomAccessFile userHistoryRAF;
+    /** The file userHistoryRAF has been opened on */
+    File historyFile;
+
+    /** During index construction, actions are appended to this
+	buffer, and written to actions.dat when it fills up */
+    private ByteBuffer actionBuf = null;
+    /** The number of actions that have been written to actions.dat */
+    private long actionsWritten = 0;
+    /** Size of actionBuf, in actions */
+    static final int ACTION_BUFFER = 1<<18;
+
+    /** The total number of pointers waiting (in UserEntry.pending) to
+	be written to userHistory.dat */
+    private int pendingTotal = 0;
+    /** When there are this many pending pointers, they are written out */
+    static final int HISTORY_BATCH = 1<<22;
+
+    /** Adds an action to the end of actions.dat (via the buffer).
+	@return The action's position in actions.dat, in records
+    */
+    private int appendAction(ActionDetails act) throws IOException {
+	if (actionBuf==null) {
+	    actionBuf = ByteBuffer.allocate(ACTION_BUFFER * act.sizeof());
+	    actionsWritten = actionRAF.lengthObject();
+	}
+	if (!actionBuf.hasRemaining()) flushActions();
+	int actionID = (int)(actionsWritten + actionBuf.position()/act.sizeof());
+	act.write(actionBuf);
+	return actionID;
+    }
+
+    /** The article ID of an action that has been passed to appendAction() */
+    private int aidOfAction(int actionID) throws IOException {
+	if (actionBuf!=null && actionID >= actionsWritten) {
+	    int sizeof = actionRAF.sizeof;
+	    return actionBuf.getInt((int)(actionID - actionsWritten)*sizeof + 4);
+	}
+	return actionRAF.read(new ActionDetails(), actionID).aid;
+    }
+
+    /** Writes the buffered actions to actions.dat */
+    private void flushActions() throws IOException {
+	if (actionBuf==null || actionBuf.position()==0) return;
+	actionRAF.seekObject(actionsWritten);
+	actionRAF.write(actionBuf.array(), 0, actionBuf.position());
+	actionsWritten += actionBuf.position() / actionRAF.sizeof;
+	actionBuf.clear();
+    }
+
+    /** Writes all pending pointers to userHistory.dat. The users'
+	sections are in the same order as the users, so this is done
+	in one forward sweep over the file.
+    */
+    private void flushHistory() throws IOException {
+	for(UserEntry u: users) {
+	    if (u.pendingCnt>0) u.flushPending();
+	}
+	pendingTotal = 0;
+    }
 
     void openFiles(File outdir, String mode) throws IOException {
 	File actionFile = new File(outdir, "actions.dat");
-	actionRAF=new RAF<ActionDetails>(actionFile,mode, new ActionDetails());
+	// a reader may have the actions in segment files instead (see SegmentedActionStore)
+	actionRAF= (mode.equals("r") && !actionFile.exists())? null:
+	    new RAF<ActionDetails>(actionFile,mode, new ActionDetails());
 
-	File historyFile = new File(outdir, "userHistory.dat");
+	historyFile = new File(outdir, "userHistory.dat");
 	userHistoryRAF=new ObjectRandomAccessFile(historyFile,mode, Integer.SIZE/8);
     }
     
     void closeFiles() throws IOException {
-	actionRAF.close();
+	if (actionRAF!=null) actionRAF.close();
 	userHistoryRAF.close();
     };
 
     void saveActions(File[] jsonFiles, File outdir) throws IOException {
 	openFiles(outdir, "rw");
 
-	for(File g: jsonFiles) {
-	    System.out.println("Processing " + g);
-	    addFromJsonFile(g);
+	LogPrefetcher pf = new LogPrefetcher(jsonFiles);
+	try {
+	    for(int k=0; k<jsonFiles.length; k++) {
+		System.out.println("Processing " + jsonFiles[k]);
+		addFromJsonFile(jsonFiles[k], pf.open(k));
+	    }
+	} finally {
+	    pf.close();
 	}
+	finishSaving(outdir);
+    }
+
+    /** Like saveActions(File[], File), but reads the actions from the
+	file written by UserStats during its pass over the log files,
+	instead of reading the log files again.
+     */
+    void saveActions(ActionSpill spill, File outdir) throws IOException {
+	openFiles(outdir, "rw");
+
+	int[] aidMap = spill.aidMap(aidNameTable);
+	System.out.println("Reading " + spill.cnt + " actions from " + spill.file);
+	ActionSpill.Reader r = new ActionSpill.Reader(spill.file);
+	int fileCnt = 0;
+	actionCnt=0;
+	recordedActionCnt=0;
+	dupCnt=0;
+	while(r.next()) {
+	    if (r.uid == ActionSpill.EOF_MARK) {
+		fileCnt++;
+		System.out.println("Log file No. " + fileCnt + " done");
+		endOfFile();
+		continue;
+	    }
+	    addAction(r.uid, aidMap[r.aid], r.utc);
+	}
+	r.close();
+	finishSaving(outdir);
+    }
+
+    /** Compacts the history file, closes the data files, and writes
+	the index file */
+    private void finishSaving(File outdir) throws IOException {
+	flushActions();
+	flushHistory();
 	System.out.println("Processed all actions; |index|="+userHistoryRAF.lengthObject()+". Will do compacting now");
 	compact();
 	System.out.println("Done compacting; |index|="+userHistoryRAF.lengthObject());
 
 	closeFiles();
 
-	File historyIndexFile = new File(outdir, "userHistoryIndex.dat");
-	writeIndexFile(historyIndexFile );
+	writeIndexFile(historyIndexFile(outdir));
+    }
+
+    /** The file into which the offsets of the users' sections of the
+	history file are written */
+    File historyIndexFile(File outdir) {
+	return new File(outdir, "userHistoryIndex.dat");
     }
  
 
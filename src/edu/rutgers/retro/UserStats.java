@@ -5,6 +5,7 @@ import java.util.*;
 import java.util.zip.*;
 import java.util.regex.*;
 import java.text.*;
+import java.util.concurrent.*;
 
 import org.json.*;
 
@@ -68,6 +69,10 @@ public class UserStats {
 	    robot-like, and his activity should not be taken into account 
 	    anymore */
 	boolean excludeFromNowOn=false;
+	/** The position of this user's first action in the input (file
+	    number, action number), as recorded by addFromJsonFilesParallel().
+	    Used to restore the order in which users have been found. */
+	long firstSeen=0;
 	/** Criteria for excluding overly active users */
 	final static int[] windowSizes = {300, 24*3600};
 	final static int[] maxCntWindow = {20, 60};
@@ -155,56 +160,148 @@ public class UserStats {
 
     int unexpectedActionCnt = 0;		
 
+    /** If true, log files are read with RawActionDecoder; otherwise,
+	with JsonEntryIterator and ActionLine */
+    static boolean rawDecode = true;
+    /** Used (and reused for all files) when rawDecode is on */
+    private RawActionDecoder decoder = null;
+
+    /** Counters for one log file, for reporting */
+    static class FileCounts {
+	int entryCnt=0, cnt=0, ignorableActionCnt=0, unexpectedActionCnt=0, botCnt=0, ignorableUserCnt=0, usedCnt = 0;
+    }
+
+    /** Receives the usable actions found in a log file */
+    interface ActionSink {
+	void addAction(String uid, int utc, String userAgent, String aid) throws IOException;
+    }
+
+    /** Adds the user actions found in a log file to the statistics */
+    private final ActionSink statsSink = new ActionSink() {
+	    public void addAction(String uid, int utc, String userAgent, String aid) throws IOException {
+		UserStats.this.addAction(uid, utc, userAgent, aid);
+	    }
+	};
+
+    /** If not null, all usable actions are also saved here, to be used
+	by saveActions() */
+    ActionSpill spill = null;
+
     void addFromJsonFile(File f) throws IOException, JSONException {
+	addFromJsonFile(Json.openLogStream(f));
+    }
+
+    /** @param in The uncompressed content of a log file (e.g. from
+	LogPrefetcher). It will be closed by this method. */
+    void addFromJsonFile(InputStream in) throws IOException, JSONException {
+	if (rawDecode && decoder==null) decoder = new RawActionDecoder(inferrer);
+	FileCounts c = rawDecode? addFromJsonFileRaw(in, decoder, statsSink) :
+	    addFromJsonFileJ(in, statsSink);
+	report(c);
+	reportUsers();
+	if (spill!=null) spill.endOfFile();
+    }
+
+    /** Reads a log file with JsonEntryIterator, creating an ActionLine
+	for every entry */
+    private FileCounts addFromJsonFileJ(InputStream in, ActionSink sink) throws IOException, JSONException {
 
-	JSONObject jsoOuter = Json.readJsonFile(f);
-	JSONArray jsa = jsoOuter.getJSONArray("entries");
-	int len = jsa.length();
-	System.out.println("Json data file action entry count = " + len);
+	JsonEntryIterator it = new JsonEntryIterator(new InputStreamReader(in));
 
-	int cnt=0, ignorableActionCnt=0, invalidAidCnt = 0, unexpectedActionCnt=0, botCnt=0, ignorableUserCnt=0, usedCnt = 0;
-	for(int i=0; i< len; i++) {
-	    JSONObject jso = jsa.getJSONObject(i);
+	FileCounts c = new FileCounts();
+	while(it.hasNext()) {
+	    JSONObject jso = it.next();
 	    ActionLine z = new ActionLine(jso);
 
 	    if (z.ignorableAction) {
-		ignorableActionCnt++;
-		if (z.unexpectedAction) unexpectedActionCnt++;
+		c.ignorableActionCnt++;
+		if (z.unexpectedAction) c.unexpectedActionCnt++;
 		continue;		
 	    } 
 	    
 	    if (z.isBot) {
-		botCnt++;
+		c.botCnt++;
 		continue;
 	    }
 
-	    cnt ++;
+	    c.cnt ++;
 
 	    String uid= inferrer.inferUser(z.ip_hash,  z.cookie);
 	    if (uid==null) {
-		ignorableUserCnt++;
+		c.ignorableUserCnt++;
+		continue;
+	    }
+	    sink.addAction(uid, z.utc, z.user_agent, z.aid);
+	    c.usedCnt++;
+	}
+	it.close();
+	c.entryCnt = it.count();
+	return c;
+    }
+
+    /** Reads a log file with RawActionDecoder. The strings passed to
+	addAction() come from the decoder's tables, so no objects are
+	created here for users and articles that have been seen before. */
+    private FileCounts addFromJsonFileRaw(InputStream in, RawActionDecoder z, ActionSink sink) throws IOException {
+	z.open(in);
+
+	FileCounts c = new FileCounts();
+	while(z.next()) {
+	    if (z.ignorableAction) {
+		c.ignorableActionCnt++;
+		if (z.unexpectedAction) c.unexpectedActionCnt++;
+		continue;		
+	    } 
+	    
+	    if (z.isBot) {
+		c.botCnt++;
 		continue;
 	    }
-	    UserInfo u = allUsers.get(uid);
-	    if (u==null) allUsers.put(uid, u=new UserInfo(uid,z.utc,z.user_agent));
-	    else u.add(z.utc, z.user_agent);
 
-	    allAidsSet.add(z.aid);
-	    userNameTable.addIfNew(uid);
-	    usedCnt++;
+	    c.cnt ++;
+
+	    if (z.user<0) {
+		c.ignorableUserCnt++;
+		continue;
+	    }
+	    sink.addAction(z.userName(z.user), z.utc, z.userAgentName(z.userAgentId), z.aidName(z.aid));
+	    c.usedCnt++;
 	}
+	z.close();
+	c.entryCnt = z.count();
+	return c;
+    }
+
+    /** Records one action in the statistics of the user who has carried
+	it out */
+    private void addAction(String uid, int utc, String userAgent, String aid) throws IOException {
+	if (spill!=null) spill.write(uid, aid, utc);
+	UserInfo u = allUsers.get(uid);
+	if (u==null) allUsers.put(uid, u=new UserInfo(uid,utc,userAgent));
+	else u.add(utc, userAgent);
+
+	allAidsSet.add(aid);
+	userNameTable.addIfNew(uid);
+    }
+
+    /** Prints the statistics for a log file that has just been read */
+    private void report(FileCounts c) {
+	System.out.println("Json data file action entry count = " + c.entryCnt);
 	
-	System.out.println("Analyzable action entries count = " + cnt);
-	System.out.println("Ignorable  action entries count = " + ignorableActionCnt);
-	if (unexpectedActionCnt>0) {
-	    System.out.println("There were also " + unexpectedActionCnt + " entries with an arxiv_id field, but with an unacceptable action type");
+	System.out.println("Analyzable action entries count = " + c.cnt);
+	System.out.println("Ignorable  action entries count = " + c.ignorableActionCnt);
+	if (c.unexpectedActionCnt>0) {
+	    System.out.println("There were also " + c.unexpectedActionCnt + " entries with an arxiv_id field, but with an unacceptable action type");
 	}
 
-	if (botCnt>0) 	System.out.println("Skipped known bot entries count = " + botCnt);
-	if (ignorableUserCnt>0) System.out.println("Ignored user entries count = " +ignorableUserCnt);
+	if (c.botCnt>0) 	System.out.println("Skipped known bot entries count = " + c.botCnt);
+	if (c.ignorableUserCnt>0) System.out.println("Ignored user entries count = " +c.ignorableUserCnt);
 
-	System.out.println("Eventually used actions (including those from too-active users, some to be later discarded) = " + usedCnt);	
+	System.out.println("Eventually used actions (including those from too-active users, some to be later discarded) = " + c.usedCnt);	
+    }
 
+    /** Prints the number of users found so far */
+    private void reportUsers() {
 	int rejectedUserCnt=0;
 	for(UserInfo ui: allUsers.values()) {
 	    if (ui.excludeFromNowOn) rejectedUserCnt++;
@@ -215,6 +312,199 @@ public class UserStats {
 
     }
 
+    /** The usable actions from one log file, as extracted by a
+	parser thread in addFromJsonFilesParallel(). The actions are
+	also listed separately for each shard, i.e. each subset of
+	users whose statistics are processed by the same thread.
+     */
+    private static class ParsedLog implements ActionSink {
+	final int fileNo;
+	FileCounts c;
+	/** The inferrer's counts for this file */
+	final ArxivUserInferrer.Counts inferred = new ArxivUserInferrer.Counts();
+	int n=0;
+	String[] uids = new String[1024], userAgents = new String[1024], aidList = new String[1024];
+	int[] utcs = new int[1024];
+	/** All distinct article IDs found in the file */
+	HashSet<String> aids = new HashSet<String>();
+	/** For each shard, the positions of its users' actions */
+	final int[][] shardActions;
+	final int[] shardCnt;
+
+	ParsedLog(int _fileNo, int nShards) {
+	    fileNo = _fileNo;
+	    shardActions = new int[nShards][];
+	    shardCnt = new int[nShards];
+	    for(int s=0; s<nShards; s++) shardActions[s] = new int[1024];
+	}
+
+	public void addAction(String uid, int utc, String userAgent, String aid) {
+	    if (n==utcs.length) {
+		uids = Arrays.copyOf(uids, 2*n);
+		userAgents = Arrays.copyOf(userAgents, 2*n);
+		aidList = Arrays.copyOf(aidList, 2*n);
+		utcs = Arrays.copyOf(utcs, 2*n);
+	    }
+	    uids[n] = uid;
+	    userAgents[n] = userAgent;
+	    aidList[n] = aid;
+	    utcs[n] = utc;
+	    aids.add(aid);
+	    int s = shardOf(uid, shardCnt.length);
+	    if (shardCnt[s]==shardActions[s].length) shardActions[s] = Arrays.copyOf(shardActions[s], 2*shardCnt[s]);
+	    shardActions[s][shardCnt[s]++] = n;
+	    n++;
+	}
+    }
+
+    /** Which shard the user belongs to */
+    static int shardOf(String uid, int nShards) {
+	return (uid.hashCode() & 0x7FFFFFFF) % nShards;
+    }
+
+    /** The part of the user statistics that's handled by one shard
+	thread in addFromJsonFilesParallel() */
+    private static class Shard {
+	final int shardNo;
+	final HashMap<String, UserInfo> users = new HashMap<String, UserInfo>();
+	Shard(int _shardNo) {
+	    shardNo = _shardNo;
+	}
+	/** Processes this shard's actions from one file, in order */
+	void apply(ParsedLog p) {
+	    int[] list = p.shardActions[shardNo];
+	    for(int k=0; k<p.shardCnt[shardNo]; k++) {
+		int i = list[k];
+		String uid = p.uids[i];
+		UserInfo u = users.get(uid);
+		if (u==null) {
+		    users.put(uid, u=new UserInfo(uid,p.utcs[i],p.userAgents[i]));
+		    u.firstSeen = (((long)p.fileNo)<<32) | i;
+		} else u.add(p.utcs[i], p.userAgents[i]);
+	    }
+	}
+    }
+
+    /** Does the same thing as calling addFromJsonFile() on each file in
+	turn, but uses several threads. Up to nThreads files are
+	decompressed and parsed concurrently. The actions are then
+	handed, in the order of the files, to nThreads shard threads,
+	with each user's actions always going to the same shard (based
+	on the user name's hash code). Thus each user's actions are
+	seen by UserInfo.add() in the same order as in a sequential run,
+	and all exclusion decisions are the same. At the end, allUsers
+	and userNameTable are filled in the order in which users have
+	first appeared in the logs, so that the output files are
+	identical to those produced by a sequential run.
+     */
+    void addFromJsonFilesParallel(final File[] files, int nThreads) throws IOException, JSONException {
+	ExecutorService parsers = Executors.newFixedThreadPool(nThreads);
+	ExecutorService[] shardThreads = new ExecutorService[nThreads];
+	final Shard[] shards = new Shard[nThreads];
+	for(int s=0; s<nThreads; s++) {
+	    shardThreads[s] = Executors.newSingleThreadExecutor();
+	    shards[s] = new Shard(s);
+	}
+	// users already known (when appending to an existing index)
+	for(UserInfo u: allUsers.values()) shards[shardOf(u.uid, nThreads)].users.put(u.uid, u);
+	// each parser thread uses its own decoder
+	final ThreadLocal<RawActionDecoder> decoders = new ThreadLocal<RawActionDecoder>() {
+	    protected RawActionDecoder initialValue() {
+		return new RawActionDecoder(inferrer);
+	    }
+	};
+	final int nShards = nThreads;
+	// for each file that has been dispatched to the shards, but may
+	// still be being applied, the shards' tasks
+	LinkedList<Vector<Future<?>>> applied = new LinkedList<Vector<Future<?>>>();
+	try {
+	    // parsing tasks for files that haven't been dispatched yet
+	    LinkedList<Future<ParsedLog>> parsed = new LinkedList<Future<ParsedLog>>();
+	    int submitted = 0;
+	    for(int k=0; k<files.length; k++) {
+		// keep up to 2*nThreads files in memory, counting both
+		// those being parsed and those being applied
+		while(submitted < files.length && submitted < k + 2*nThreads) {
+		    while(parsed.size() + applied.size() >= 2*nThreads) {
+			for(Future<?> f: applied.removeFirst()) getResult(f);
+		    }
+		    final int fileNo = submitted++;
+		    parsed.add(parsers.submit(new Callable<ParsedLog>() {
+			    public ParsedLog call() throws Exception {
+				ParsedLog p = new ParsedLog(fileNo, nShards);
+				inferrer.countInto(p.inferred);
+				try {
+				    p.c = rawDecode?
+					addFromJsonFileRaw(Json.openLogStream(files[fileNo]), decoders.get(), p) :
+					addFromJsonFileJ(Json.openLogStream(files[fileNo]), p);
+				} finally {
+				    inferrer.countInto(null);
+				}
+				return p;
+			    }
+			}));
+		}
+		final ParsedLog p = getResult(parsed.removeFirst());
+		System.out.println("Processed " + files[k]);
+		report(p.c);
+		inferrer.addCounts(p.inferred);
+		allAidsSet.addAll(p.aids);
+		if (spill!=null) {
+		    for(int i=0; i<p.n; i++) spill.write(p.uids[i], p.aidList[i], p.utcs[i]);
+		    spill.endOfFile();
+		}
+		Vector<Future<?>> tasks = new Vector<Future<?>>();
+		for(int s=0; s<nShards; s++) {
+		    if (p.shardCnt[s]==0) continue;
+		    final Shard shard = shards[s];
+		    tasks.add(shardThreads[s].submit(new Runnable() {
+			    public void run() {
+				shard.apply(p);
+			    }
+			}));
+		}
+		applied.add(tasks);
+	    }
+	    for(Vector<Future<?>> tasks: applied) {
+		for(Future<?> f: tasks) getResult(f);
+	    }
+	} finally {
+	    parsers.shutdownNow();
+	    for(ExecutorService e: shardThreads) e.shutdownNow();
+	}
+
+	// Merge the shards, restoring the sequential order of users
+	Vector<UserInfo> v = new Vector<UserInfo>();
+	for(Shard shard: shards) v.addAll(shard.users.values());
+	UserInfo[] all = v.toArray(new UserInfo[0]);
+	Arrays.sort(all, new Comparator<UserInfo>() {
+		public int compare(UserInfo a, UserInfo b) {
+		    return Long.compare(a.firstSeen, b.firstSeen);
+		}
+	    });
+	for(UserInfo u: all) {
+	    allUsers.put(u.uid, u);
+	    userNameTable.addIfNew(u.uid);
+	}
+	reportUsers();
+    }
+
+    /** Waits for a task to complete, passing on any exception thrown
+	in it */
+    private static <T> T getResult(Future<T> f) throws IOException, JSONException {
+	try {
+	    return f.get();
+	} catch(InterruptedException ex) {
+	    throw new IOException("Interrupted", ex);
+	} catch(ExecutionException ex) {
+	    Throwable e = ex.getCause();
+	    if (e instanceof IOException) throw (IOException)e;
+	    if (e instanceof RuntimeException) throw (RuntimeException)e;
+	    if (e instanceof Error) throw (Error)e;
+	    throw new IOException(e);
+	}
+    }
+
     /** Writes info about all users, except single-article ones, to a CSV file */
     void save(File f) throws IOException {
 	PrintWriter w = new PrintWriter(new FileWriter(f));
@@ -227,7 +517,81 @@ public class UserStats {
 	w.close();
     }
 
-    /** Creates the user action index, using the UserActionSaver class */
+    static final int STATE_MAGIC = 0x55535431; // "UST1"
+
+    /** Saves everything needed to continue collecting the statistics
+	later (see IndexAppender): for each user, in userNameTable order,
+	the UserInfo fields and the content of the history windows (so
+	that exclusion decisions for actions from later log files will
+	be the same as in a single run over all files).
+     */
+    void saveState(File f) throws IOException {
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<20));
+	out.writeInt(STATE_MAGIC);
+	out.writeInt(userNameTable.size());
+	for(int i=0; i<userNameTable.size(); i++) {
+	    UserInfo u = allUsers.get(userNameTable.nameAt(i));
+	    out.writeInt(u.cnt);
+	    out.writeInt(u.acceptCnt);
+	    out.writeInt(u.utc0);
+	    out.writeInt(u.utc1);
+	    out.writeBoolean(u.userAgentsVary);
+	    out.writeBoolean(u.excludeFromNowOn);
+	    // not writeUTF(), which can't handle strings over 64K
+	    byte[] ua = (u.userAgent==null)? null: u.userAgent.getBytes("UTF-8");
+	    out.writeInt(ua==null? -1 : ua.length);
+	    if (ua!=null) out.write(ua);
+	    for(HistoryWindow hw: u.historyWindow) {
+		out.writeBoolean(hw.rejected);
+		out.writeInt(hw.acceptCnt);
+		out.writeInt(hw.size());
+		for(int utc: hw) out.writeInt(utc);
+	    }
+	}
+	out.close();
+    }
+
+    /** Restores the statistics saved by saveState(). The user names
+	come from userNameTable, which must already have been loaded.
+     */
+    void loadState(File f) throws IOException {
+	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1<<20));
+	if (in.readInt() != STATE_MAGIC) throw new IOException("Not a user state file: " + f);
+	int n = in.readInt();
+	if (n != userNameTable.size()) throw new IOException("User count mismatch: " + f + " has " + n + " users, the user table has " + userNameTable.size());
+	for(int i=0; i<n; i++) {
+	    String uid = userNameTable.nameAt(i);
+	    int cnt = in.readInt(), acceptCnt = in.readInt(), utc0 = in.readInt(), utc1 = in.readInt();
+	    boolean vary = in.readBoolean(), exclude = in.readBoolean();
+	    int len = in.readInt();
+	    String ua = null;
+	    if (len>=0) {
+		byte[] b = new byte[len];
+		in.readFully(b);
+		ua = new String(b, "UTF-8");
+	    }
+	    UserInfo u = new UserInfo(uid, utc0, ua);
+	    u.cnt = cnt;
+	    u.acceptCnt = acceptCnt;
+	    u.utc1 = utc1;
+	    u.userAgentsVary = vary;
+	    u.excludeFromNowOn = exclude;
+	    for(HistoryWindow hw: u.historyWindow) {
+		hw.clear();
+		hw.rejected = in.readBoolean();
+		hw.acceptCnt = in.readInt();
+		int m = in.readInt();
+		for(int k=0; k<m; k++) hw.add(in.readInt());
+	    }
+	    allUsers.put(uid, u);
+	}
+	in.close();
+    }
+
+    /** Creates the user action index, using the UserActionSaver
+	class. If the actions have been saved to the spill file during
+	the first pass, they are read from there; otherwise, the log
+	files are read again. */
     void saveActions(NameTable aidNameTable, File[] jsonFiles)  throws IOException {
 	// create user list aligned with userNameTable order
 	//UserInfo users[] = new UserInfo[userNameTable.size()];
@@ -237,12 +601,46 @@ public class UserStats {
 
 	UserActionSaver uas = new UserActionSaver(inferrer, userNameTable, aidNameTable, allUsers);
 	//allUsers.values().toArray(new UserInfo[0]));
+	saveActions(uas, jsonFiles);
+    }
+
+    /** Like saveActions(), but adds the actions to an existing index
+	(see IndexAppender)
+	@param prevAcceptCnt The users' acceptCnt values before the new
+	log files have been read
+     */
+    void appendActions(NameTable aidNameTable, File[] jsonFiles, int[] prevAcceptCnt)  throws IOException {
+	saveActions(new IndexAppender(inferrer, userNameTable, aidNameTable, allUsers, prevAcceptCnt, outdir), jsonFiles);
+    }
 
+    private void saveActions(UserActionSaver uas, File[] jsonFiles)  throws IOException {
 	allUsers.clear(); // enable GC
 	outdir.mkdirs();
-	uas.saveActions(jsonFiles, outdir);
+	if (spill!=null) {
+	    spill.close();
+	    uas.saveActions(spill, outdir);
+	    spill.file.delete();
+	} else {
+	    uas.saveActions(jsonFiles, outdir);
+	}
    }
 
+    /** Loads the user table and statistics of the existing index in
+	outdir, to which new actions will be appended.
+	@return The users' acceptCnt values
+     */
+    int[] loadIndexState() throws IOException {
+	IndexAppender.checkAppendable(outdir);
+	userNameTable = new NameTable(new File(outdir, "users.dat"));
+	loadState(new File(outdir, "userState.dat"));
+	int[] acceptCnt = new int[userNameTable.size()];
+	for(int i=0; i<acceptCnt.length; i++) {
+	    acceptCnt[i] = allUsers.get(userNameTable.nameAt(i)).acceptCnt;
+	}
+	System.out.println("Loaded the statistics for " + acceptCnt.length + " users from " + outdir);
+	return acceptCnt;
+    }
+
     static void usage() {
 	usage(null);
     }
@@ -289,8 +687,12 @@ public class UserStats {
 	Commands:
 	<ul>
 	<li> users
-        <li> userActions
-        <li> readActions
+	<li> userActions
+	<li> appendActions - adds the log files not processed yet to
+	an existing index (see IndexAppender); with -Dmerge=true, also
+	merges the overflow segments
+	<li> mergeActions - merges the overflow segments into the index
+	<li> readActions
 	</ul>
 
      */
@@ -298,6 +700,10 @@ public class UserStats {
 
 	ht = new ParseConfig();
 	ActionLine.skipBots = ht.getBoolean("skipBots", ActionLine.skipBots);
+	rawDecode = ht.getOption("rawDecode", rawDecode);
+	UserActionReader.mapActions = ht.getOption("mapActions", UserActionReader.mapActions);
+	UserActionReader.columnarActions = ht.getOption("columnar", UserActionReader.columnarActions);
+	LogPrefetcher.depth = ht.getOption("prefetch", LogPrefetcher.depth);
 
 	final String tcPath = ht.getOption("tc", "/data/json/usage/tc.json.gz");
 
@@ -312,10 +718,13 @@ public class UserStats {
 	if (argv.length < 1) {
 	    usage("Command not specified");
 	} else if (argv[0].equals("users") ||
-		   argv[0].equals("userActions")) {
+		   argv[0].equals("userActions") ||
+		   argv[0].equals("appendActions")) {
+	    final boolean append = argv[0].equals("appendActions");
+	    final boolean saveActions = !argv[0].equals("users");
 	    
 	    ArxivUserInferrer inferrer = useCookies?
-		new CookieArxivUserInferrer(new ArxivUserTable(tcPath), anon):
+		new CookieArxivUserInferrer(ArxivUserTable.load(tcPath), anon):
 		new IPArxivUserInferrer();
 	    UserStats us = new UserStats(inferrer);
 
@@ -340,27 +749,92 @@ public class UserStats {
 	    File[] files = lister.list();
 	    System.out.println("Found " +files.length+ " data files to process in " + f);
 
-	    for(File g: files) {
-		System.out.println("Processing " + g);
-		us.addFromJsonFile(g);
+	    // the users' acceptCnt values in the existing index
+	    int[] prevAcceptCnt = null;
+	    int prevAidCnt = 0;
+	    NameTable aidNameTable = null;
+	    if (append) {
+		prevAcceptCnt = us.loadIndexState();
+		aidNameTable = new NameTable(new File(outdir, "aid.dat"));
+		prevAidCnt = aidNameTable.size();
+		files = IndexAppender.newLogFiles(outdir, files);
+		System.out.println("Of them, " + files.length + " have not been added to the index yet");
+		if (files.length==0) return;
+		IndexAppender.removeDerivedFiles(outdir);
+	    } else if (saveActions) {
+		IndexAppender.removeDerivedFiles(outdir);
+		IndexAppender.removeSegments(outdir);
+	    }
+
+	    if (saveActions && ht.getOption("spill", true)) {
+		// Save actions for the index builder, so that it won't need to
+		// read the logs again
+		outdir.mkdirs();
+		us.spill = new ActionSpill(new File(outdir, "actions.spill"), us.userNameTable);
+	    }
+
+	    int nThreads = ht.getOption("threads", 1);
+	    if (nThreads > 1) {
+		System.out.println("Will use " + nThreads + " threads");
+		us.addFromJsonFilesParallel(files, nThreads);
+	    } else {
+		LogPrefetcher pf = new LogPrefetcher(files);
+		try {
+		    for(int k=0; k<files.length; k++) {
+			System.out.println("Processing " + files[k]);
+			us.addFromJsonFile(pf.open(k));
+		    }
+		} finally {
+		    pf.close();
+		}
 	    }
 
 	    // Save list of users
 	    outdir.mkdirs();
 	    us.save(new File(outdir, "users.csv"));
-	    us.userNameTable.save(new File(outdir, "users.dat"));
-
-	    // Save sorted list of article IDs
+	    File usersFile = new File(outdir, "users.dat");
+	    if (append) IndexAppender.appendNames(us.userNameTable, prevAcceptCnt.length, usersFile);
+	    else us.userNameTable.save(usersFile);
+	    // binary version, for the readers to map
+	    MappedNameTable.write(us.userNameTable, MappedNameTable.dictFile(usersFile));
+
+	    // Save sorted list of article IDs. When appending, the new
+	    // ones (sorted among themselves) go after the existing ones
 	    String[] allAids = (String[])us.allAidsSet.toArray(new String[0]);
 	    Arrays.sort(allAids);
-	    NameTable aidNameTable = new NameTable(allAids);
-	    aidNameTable.save(new File(outdir, "aid.dat"));
-
-	    if (argv[0].equals("userActions")) {
+	    File aidFile = new File(outdir, "aid.dat");
+	    if (append) {
+		aidNameTable.addAll(allAids);
+		IndexAppender.appendNames(aidNameTable, prevAidCnt, aidFile);
+		System.out.println("Added " + (aidNameTable.size()-prevAidCnt) + " new articles to " + aidFile);
+	    } else {
+		aidNameTable = new NameTable(allAids);
+		aidNameTable.save(aidFile);
+	    }
+	    MappedNameTable.write(aidNameTable, MappedNameTable.dictFile(aidFile));
+
+	    if (saveActions) {
+		// the state is saved now, since saveActions() discards
+		// it, but only put in place once the actions are saved
+		File stateFile = new File(outdir, "userState.dat");
+		File tmpStateFile = new File(outdir, "userState.dat.tmp");
+		us.saveState(tmpStateFile);
 		System.out.println("Now, saving user actions...");
-		us.saveActions(aidNameTable, files);
+		if (append) us.appendActions(aidNameTable, files, prevAcceptCnt);
+		else us.saveActions(aidNameTable, files);
+		if (stateFile.exists() && !stateFile.delete() || !tmpStateFile.renameTo(stateFile)) {
+		    throw new IOException("Failed to replace " + stateFile + " with " + tmpStateFile);
+		}
+		IndexAppender.recordLogFiles(outdir, files, append);
+		if (append && ht.getOption("merge", false)) IndexAppender.merge(outdir);
+		if (ht.getOption("clustered", false)) {
+		    if (IndexAppender.segmentCount(outdir)==0) ClusteredHistory.convert(outdir);
+		    else System.out.println("Not creating " + ClusteredHistory.file(outdir) + " until the overflow segments are merged");
+		}
 	    }
  
+	} else if (argv[0].equals("mergeActions")) {
+	    IndexAppender.merge(outdir);
 	} else if (argv[0].equals("readActions")) {
 	    //	    NameTable userNameTable = new NameTable(new File(outdir, "users.dat"));
 	    //	    NameTable aidNameTable = new NameTable(new File(outdir, "aid.dat"));
@@ -0,0 +1,52 @@
+package edu.rutgers.retro;
+
+import java.io.*;
+import java.util.*;
+
+/** The users' state during a replay of the action list (Coaccess,
+    PredictStructure), kept in parallel arrays indexed by uid, rather
+    than in an object per user. The per-user lists of articles of
+    interest are kept in a side array, which is only allocated once
+    some user has viewed one of the articles of interest, and only
+    has entries for such users.
+*/
+class UserTable {
+    /** How many of each user's actions (from the beginning of the
+	user's section of userHistory.dat) have been processed so far */
+    final int[] readCnt;
+    /** How many of each user's actions are excluded from the replay
+	(see UserActionReader.startAt()) */
+    final int[] startCnt;
+    /** The articles of interest each user has seen so far (indexed
+	by uid; null until first needed) */
+    private ArticlesOfInterest[] ofInterest = null;
+
+    UserTable(int userCnt) {
+	readCnt = new int[userCnt];
+	startCnt = new int[userCnt];
+    }
+
+    /** @return The user's articles of interest, or null if the user
+	hasn't seen any */
+    ArticlesOfInterest ofInterest(int uid) {
+	return (ofInterest==null)? null: ofInterest[uid];
+    }
+
+    /** Returns the user's ArticlesOfInterest object, creating it (as
+	appropriate for this run) if needed */
+    ArticlesOfInterest enableOfInterest(int uid, int windowSec) {
+	if (ofInterest==null) ofInterest = new ArticlesOfInterest[readCnt.length];
+	ArticlesOfInterest aoi = ofInterest[uid];
+	if (aoi==null) {
+	    aoi = ofInterest[uid] = (windowSec < 0) ? new BasicArticlesOfInterest():
+		new WindowArticlesOfInterest(windowSec);
+	}
+	return aoi;
+    }
+
+    /** Prepares for a new run */
+    void reset() {
+	System.arraycopy(startCnt, 0, readCnt, 0, readCnt.length);
+	if (ofInterest!=null) Arrays.fill(ofInterest, null);
+    }
+}